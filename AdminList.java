@@ -0,0 +1,240 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+
+/**
+ * The list of admin hosts, backed by a file that is watched for changes.
+ * The list is an immutable snapshot swapped in atomically, so readers never
+ * lock and never see a partially loaded list. One instance is shared by
+ * every bot using the same file.
+ * @author Yizhe Shen
+ */
+public class AdminList implements Runnable {
+    private static final HashMap<String, AdminList> lists = new HashMap<>();
+    /* Quiet period after the last change before the file is reloaded */
+    private static final long SETTLE_TIME = 500;
+
+    private final PircBotX bot;
+    private final String file;
+    private volatile List<String> hosts;
+
+    /**
+     * Returns the admin list for a file, loading it and starting its
+     * watcher on first use.
+     * @param parent the bot used for logging
+     * @param file the file path
+     * @return the shared admin list
+     */
+    public static synchronized AdminList forFile(PircBotX parent, String file) {
+        String key = Paths.get(file).toAbsolutePath().normalize().toString();
+        AdminList list = lists.get(key);
+        if (list == null) {
+            list = new AdminList(parent, file);
+            lists.put(key, list);
+        }
+        return list;
+    }
+
+    private AdminList(PircBotX parent, String hostFile) {
+        bot = parent;
+        file = hostFile;
+        ArrayList<String> loaded;
+        try {
+            loaded = loadHostList(file);
+        } catch (IOException e) {
+            loaded = new ArrayList<>();
+            if (Files.exists(Paths.get(file))) {
+                bot.log("Error reading " + file + ": " + e);
+            } else {
+                bot.log("Creating " + file + "...");
+                saveHostList(file, loaded);
+            }
+        }
+        hosts = Collections.unmodifiableList(loaded);
+        Thread watcher = new Thread(this, "AdminList-Watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Checks if a host is on the list.
+     * @param host the host
+     * @return true if the host is an admin
+     */
+    public boolean contains(String host) {
+        return hosts.contains(host);
+    }
+
+    /**
+     * Returns the current snapshot of admin hosts.
+     * @return an unmodifiable list of hosts
+     */
+    public List<String> getAll() {
+        return hosts;
+    }
+
+    /**
+     * Adds a host and saves the file.
+     * @param host the host
+     */
+    public synchronized void add(String host) {
+        ArrayList<String> copy = new ArrayList<>(hosts);
+        copy.add(host);
+        hosts = Collections.unmodifiableList(copy);
+        saveHostList(file, copy);
+    }
+
+    /**
+     * Removes a host and saves the file.
+     * @param host the host
+     */
+    public synchronized void remove(String host) {
+        ArrayList<String> copy = new ArrayList<>(hosts);
+        copy.remove(host);
+        hosts = Collections.unmodifiableList(copy);
+        saveHostList(file, copy);
+    }
+
+    /**
+     * Reloads the list from the file. If the file cannot be read, the
+     * current list is kept and the file is left alone.
+     * @return the number of admins loaded, or -1 if the file could not be
+     *         read
+     */
+    public synchronized int reload() {
+        try {
+            hosts = Collections.unmodifiableList(loadHostList(file));
+        } catch (IOException e) {
+            bot.log("Error reading " + file + ", keeping " + hosts.size() + " admin(s): " + e);
+            return -1;
+        }
+        return hosts.size();
+    }
+
+    /**
+     * Watches the file's directory and reloads once the file has been
+     * created or modified and the changes have settled. Editors often
+     * truncate the file and then write it in several steps, so reloading on
+     * the first event could read a partial list.
+     */
+    @Override
+    public void run() {
+        Path path = Paths.get(file).toAbsolutePath();
+        Path name = path.getFileName();
+        try (WatchService ws = FileSystems.getDefault().newWatchService()) {
+            path.getParent().register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            WatchKey key = ws.take();
+            while (true) {
+                boolean changed = isChanged(key, name);
+                if (!key.reset()) {
+                    break;
+                }
+                // Keep waiting while further events arrive for the file
+                long quietUntil = System.currentTimeMillis() + SETTLE_TIME;
+                long wait;
+                while (changed && (wait = quietUntil - System.currentTimeMillis()) > 0) {
+                    key = ws.poll(wait, TimeUnit.MILLISECONDS);
+                    if (key == null) {
+                        break;
+                    }
+                    if (isChanged(key, name)) {
+                        quietUntil = System.currentTimeMillis() + SETTLE_TIME;
+                    }
+                    if (!key.reset()) {
+                        return;
+                    }
+                }
+                int count = changed ? reload() : -1;
+                if (count >= 0) {
+                    bot.log("Reloaded " + file + ": " + count + " admin(s).");
+                }
+                key = ws.take();
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            bot.log("Error watching " + file + ": " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Drains a key's events, checking if any of them are for the file */
+    private static boolean isChanged(WatchKey key, Path name) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (name.equals(event.context())) {
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Saves a list of hosts to the specified file.
+     * @param file the file path
+     * @param hostList ArrayList of hosts
+     */
+    private void saveHostList(String file, ArrayList<String> hostList){
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (int ctr = 0; ctr < hostList.size(); ctr++){
+                out.println(hostList.get(ctr));
+            }
+        } catch (IOException e){
+            bot.log("Error writing to " + file + "!");
+        }
+    }
+
+    /**
+     * Loads a list of hosts from the specified file.
+     * @param file the file path
+     * @return ArrayList of hosts
+     * @throws IOException if the file cannot be read
+     */
+    private static ArrayList<String> loadHostList(String file) throws IOException {
+        ArrayList<String> hostList = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    hostList.add(line.trim());
+                }
+            }
+        }
+        return hostList;
+    }
+}
@@ -0,0 +1,267 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An audit trail of admin commands. Listener threads append records to a
+ * lock-free ring buffer and never touch the disk; a background writer
+ * drains the ring into rolling memory-mapped files. If the writer falls
+ * too far behind, new records are dropped and counted rather than
+ * blocking the caller.
+ * @author Yizhe Shen
+ */
+public class AuditLog implements Runnable {
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_FILES = 8;
+    private static final int RECENT = 50;
+    private static AuditLog instance;
+
+    private final String prefix;
+    private final AtomicReferenceArray<Record> ring;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private volatile long head;
+    private volatile boolean sleeping;
+    private final Thread writer;
+    private final ArrayDeque<String> recent;
+    private final SimpleDateFormat dateFormat;
+    private int fileIndex;
+    private RandomAccessFile file;
+    private MappedByteBuffer map;
+
+    /* One audited action */
+    private static class Record {
+        long time;
+        String bot;
+        String who;
+        String command;
+        String params;
+        String result;
+    }
+
+    /**
+     * Returns the shared audit log, starting it on first use.
+     * @return the audit log
+     */
+    public static synchronized AuditLog get() {
+        if (instance == null) {
+            instance = new AuditLog("audit");
+        }
+        return instance;
+    }
+
+    /**
+     * Creates an audit log writing to files named prefix-N.log.
+     * @param filePrefix the file name prefix
+     */
+    private AuditLog(String filePrefix) {
+        prefix = filePrefix;
+        ring = new AtomicReferenceArray<>(CAPACITY);
+        tail = new AtomicLong();
+        dropped = new AtomicLong();
+        recent = new ArrayDeque<>();
+        dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        fileIndex = findLastIndex();
+
+        writer = new Thread(this, "AuditLog");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Appends a record without blocking.
+     * @param bot the nick of the bot that ran the command
+     * @param who the hostmask of the user who made the command
+     * @param command the command
+     * @param params the command parameters
+     * @param result the outcome
+     * @return false if the ring was full and the record was dropped
+     */
+    public boolean record(String bot, String who, String command, String params, String result) {
+        Record r = new Record();
+        r.time = System.currentTimeMillis();
+        r.bot = bot;
+        r.who = who;
+        r.command = command;
+        r.params = params;
+        r.result = result;
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        ring.lazySet((int) (seq & MASK), r);
+        if (sleeping) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the most recently written records.
+     * @param count the maximum number of records
+     * @return formatted records, oldest first
+     */
+    public List<String> getRecent(int count) {
+        ArrayList<String> lines = new ArrayList<>();
+        synchronized (recent) {
+            Iterator<String> it = recent.descendingIterator();
+            while (it.hasNext() && lines.size() < count) {
+                lines.add(it.next());
+            }
+        }
+        Collections.reverse(lines);
+        return lines;
+    }
+
+    /**
+     * Returns the number of records dropped because the ring was full.
+     * @return the dropped count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            long seq = head;
+            int idx = (int) (seq & MASK);
+            Record r = ring.get(idx);
+            if (r == null) {
+                // Nothing published yet, so sleep until a producer wakes us
+                sleeping = true;
+                if (ring.get(idx) == null) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                }
+                sleeping = false;
+                continue;
+            }
+            ring.lazySet(idx, null);
+            head = seq + 1;
+            write(format(r));
+        }
+    }
+
+    private String format(Record r) {
+        return dateFormat.format(new Date(r.time)) + " [" + r.bot + "] " + r.who + " "
+               + r.command + (r.params.isEmpty() ? "" : " " + r.params) + " -> " + r.result;
+    }
+
+    /**
+     * Writes a line to the current file, rolling over to a new file when
+     * it is full.
+     */
+    private synchronized void write(String line) {
+        synchronized (recent) {
+            recent.addLast(line);
+            if (recent.size() > RECENT) {
+                recent.removeFirst();
+            }
+        }
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        try {
+            if (map == null || map.remaining() < bytes.length) {
+                roll();
+            }
+            map.put(bytes, 0, Math.min(bytes.length, map.remaining()));
+        } catch (IOException e) {
+            System.err.println("AuditLog: " + e);
+            map = null;
+        }
+    }
+
+    /**
+     * Closes the current file and maps a fresh one, deleting files beyond
+     * the retention limit.
+     */
+    private void roll() throws IOException {
+        close();
+        fileIndex++;
+        file = new RandomAccessFile(prefix + "-" + fileIndex + ".log", "rw");
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        new File(prefix + "-" + (fileIndex - MAX_FILES) + ".log").delete();
+    }
+
+    /**
+     * Flushes the current file and trims it to the bytes actually written.
+     */
+    private synchronized void close() {
+        if (file == null) {
+            return;
+        }
+        try {
+            int length = 0;
+            if (map != null) {
+                map.force();
+                length = map.position();
+            }
+            file.setLength(length);
+            file.close();
+        } catch (IOException e) {
+            System.err.println("AuditLog: " + e);
+        }
+        file = null;
+        map = null;
+    }
+
+    private int findLastIndex() {
+        int last = 0;
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(prefix + "-") && name.endsWith(".log")) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(prefix.length() + 1, name.length() - 4)));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        return last;
+    }
+}
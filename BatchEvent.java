@@ -0,0 +1,122 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.events.JoinEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+
+/**
+ * A burst of JOIN, QUIT and NAMES/WHO events delivered together by a
+ * BatchingListenerManager. Quits whose reason names two servers are treated
+ * as a netsplit, and joins by users lost in a recent split are marked as
+ * rejoins.
+ * @author Yizhe Shen
+ */
+public class BatchEvent<T extends PircBotX> extends Event<T> {
+    private final List<Event<T>> events;
+    private final ArrayList<JoinEvent<T>> joins;
+    private final ArrayList<QuitEvent<T>> quits;
+    private final Set<String> splits;
+    private final Set<JoinEvent<T>> rejoins;
+
+    /**
+     * Creates a batch.
+     * @param bot the bot that received the events
+     * @param batched the events, in the order they arrived
+     * @param splitServers the "server1 server2" quit reasons seen
+     * @param rejoined the joins by users returning from a split
+     */
+    public BatchEvent(T bot, List<Event<T>> batched, Set<String> splitServers, Set<JoinEvent<T>> rejoined) {
+        super(bot);
+        events = Collections.unmodifiableList(batched);
+        joins = new ArrayList<>();
+        quits = new ArrayList<>();
+        for (Event<T> e : batched) {
+            if (e instanceof JoinEvent) {
+                joins.add((JoinEvent<T>) e);
+            } else if (e instanceof QuitEvent) {
+                quits.add((QuitEvent<T>) e);
+            }
+        }
+        splits = Collections.unmodifiableSet(splitServers);
+        rejoins = rejoined;
+    }
+
+    /**
+     * Returns every event in the batch.
+     * @return the events, in the order they arrived
+     */
+    public List<Event<T>> getEvents() {
+        return events;
+    }
+
+    /**
+     * Returns the joins in the batch.
+     * @return the join events
+     */
+    public List<JoinEvent<T>> getJoins() {
+        return Collections.unmodifiableList(joins);
+    }
+
+    /**
+     * Returns the quits in the batch.
+     * @return the quit events
+     */
+    public List<QuitEvent<T>> getQuits() {
+        return Collections.unmodifiableList(quits);
+    }
+
+    /**
+     * Returns the server pairs that split during the batch.
+     * @return the quit reasons of the form "server1 server2"
+     */
+    public Set<String> getSplits() {
+        return splits;
+    }
+
+    /**
+     * Checks if the batch contains netsplit quits.
+     * @return true if any servers split
+     */
+    public boolean isNetsplit() {
+        return !splits.isEmpty();
+    }
+
+    /**
+     * Checks if a join is a user returning from a netsplit.
+     * @param event a join from this batch
+     * @return true if the user was lost in a recent split
+     */
+    public boolean isRejoin(JoinEvent<T> event) {
+        return rejoins.contains(event);
+    }
+
+    /**
+     * Sends a raw line, since a batch has no single target.
+     * @param response the raw line
+     */
+    @Override
+    public void respond(String response) {
+        getBot().sendRawLine(response);
+    }
+}
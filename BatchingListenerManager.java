@@ -0,0 +1,263 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.Event;
+import org.pircbotx.hooks.Listener;
+import org.pircbotx.hooks.events.JoinEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+import org.pircbotx.hooks.events.ServerResponseEvent;
+import org.pircbotx.hooks.managers.ThreadedListenerManager;
+
+/**
+ * A listener manager that coalesces bursts of JOIN, QUIT and NAMES/WHO
+ * replies. Such events are held for a short window and then handed to each
+ * listener as one task: a BatchListener gets a single BatchEvent, and any
+ * other listener gets the events replayed in order. Any other event flushes
+ * the held ones first, and batches and single events are submitted to the
+ * pool under one lock, so they are submitted in the order they arrived. As
+ * with ThreadedListenerManager, listeners then run concurrently on the pool,
+ * so a listener can still see a later event before an earlier batch
+ * finishes.
+ * 
+ * To use it on a bot, set it with setListenerManager before adding any
+ * listeners, or call install to move the bot's listeners over to one.
+ * @author Yizhe Shen
+ */
+public class BatchingListenerManager<E extends PircBotX> extends ThreadedListenerManager<E> {
+    private static final long WINDOW = 250;
+    private static final int MAX_BATCH = 5000;
+    private static ScheduledExecutorService flusher;
+
+    private final ExecutorService pool;
+    private ArrayList<Event<E>> pending;
+    private final NetsplitTracker splitTracker;
+    private final AtomicLong batchCount;
+    private final AtomicLong batchedCount;
+
+    /**
+     * A listener that takes a whole batch at once.
+     */
+    public interface BatchListener<T extends PircBotX> {
+        /**
+         * Handles a batch in place of its individual events.
+         * @param event the batch
+         * @throws Exception 
+         */
+        void onBatch(BatchEvent<T> event) throws Exception;
+    }
+
+    public BatchingListenerManager() {
+        this(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Creates a manager that runs listeners on the given pool.
+     * @param listenerPool the pool
+     */
+    public BatchingListenerManager(ExecutorService listenerPool) {
+        super(listenerPool);
+        pool = listenerPool;
+        pending = new ArrayList<>();
+        splitTracker = new NetsplitTracker();
+        batchCount = new AtomicLong();
+        batchedCount = new AtomicLong();
+    }
+
+    /**
+     * Gives a bot a batching listener manager, moving over the listeners it
+     * already has. Does nothing if the bot already has one.
+     * @param bot the bot
+     * @return the bot's listener manager
+     */
+    @SuppressWarnings("rawtypes")
+    public static BatchingListenerManager<?> install(PircBotX bot) {
+        if (bot.getListenerManager() instanceof BatchingListenerManager) {
+            return (BatchingListenerManager<?>) bot.getListenerManager();
+        }
+        BatchingListenerManager<PircBotX> manager = new BatchingListenerManager<>();
+        for (Listener listener : bot.getListenerManager().getListeners()) {
+            manager.addListener(listener);
+        }
+        bot.setListenerManager(manager);
+        return manager;
+    }
+
+    @Override
+    public void dispatchEvent(Event<E> event) {
+        if (!isBatchable(event)) {
+            synchronized (this) {
+                flush();
+                super.dispatchEvent(event);
+            }
+            return;
+        }
+        boolean first;
+        boolean full;
+        synchronized (this) {
+            first = pending.isEmpty();
+            pending.add(event);
+            full = pending.size() >= MAX_BATCH;
+        }
+        if (full) {
+            flush();
+        } else if (first) {
+            getFlusher().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Dispatches the held events now. The lock is held until the batch is
+     * submitted, so an event dispatched meanwhile cannot be submitted ahead
+     * of it.
+     */
+    public synchronized void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ArrayList<Event<E>> events = pending;
+        pending = new ArrayList<>();
+        batchCount.incrementAndGet();
+        batchedCount.addAndGet(events.size());
+        final BatchEvent<E> batch = createBatch(events);
+        for (final Listener<E> listener : getTypedListeners()) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(listener, batch);
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the listeners, which ThreadedListenerManager keeps as raw
+     * Listeners, typed for this manager's bot.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private List<Listener<E>> getTypedListeners() {
+        return new ArrayList<Listener<E>>((Set) getListeners());
+    }
+
+    /**
+     * Hands a batch to one listener, as a single BatchEvent if it takes
+     * batches and otherwise as its events in order.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliver(Listener<E> listener, BatchEvent<E> batch) {
+        if (listener instanceof BatchListener) {
+            try {
+                ((BatchListener<E>) listener).onBatch(batch);
+            } catch (Exception e) {
+                batch.getBot().logException(e);
+            }
+            return;
+        }
+        for (Event<E> e : batch.getEvents()) {
+            try {
+                listener.onEvent(e);
+            } catch (Exception ex) {
+                e.getBot().logException(ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of batches dispatched.
+     * @return the batch count
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * Returns the number of events that went out in batches.
+     * @return the batched event count
+     */
+    public long getBatchedCount() {
+        return batchedCount.get();
+    }
+
+    private static boolean isBatchable(Event<?> event) {
+        if (event instanceof JoinEvent || event instanceof QuitEvent) {
+            return true;
+        }
+        if (event instanceof ServerResponseEvent) {
+            // WHO, NAMES and WHOX replies and their end markers
+            int code = ((ServerResponseEvent<?>) event).getCode();
+            return code == 352 || code == 353 || code == 354 || code == 315 || code == 366;
+        }
+        return false;
+    }
+
+    /**
+     * Builds the batch, noting which quits are netsplits and which joins
+     * are users returning from one.
+     */
+    private BatchEvent<E> createBatch(ArrayList<Event<E>> events) {
+        LinkedHashSet<String> splits = new LinkedHashSet<>();
+        Set<JoinEvent<E>> rejoins = Collections.newSetFromMap(new IdentityHashMap<JoinEvent<E>, Boolean>());
+        for (Event<E> e : events) {
+            if (e instanceof QuitEvent) {
+                QuitEvent<E> quit = (QuitEvent<E>) e;
+                if (splitTracker.quit(quit.getUser().getNick(), quit.getReason(), quit.getTimestamp())) {
+                    splits.add(quit.getReason());
+                }
+            } else if (e instanceof JoinEvent) {
+                JoinEvent<E> join = (JoinEvent<E>) e;
+                if (splitTracker.join(join.getUser().getNick(), join.getTimestamp())) {
+                    rejoins.add(join);
+                }
+            }
+        }
+        return new BatchEvent<>(events.get(0).getBot(), events, splits, rejoins);
+    }
+
+    /**
+     * Returns the timer shared by all managers, so that a fleet of clones
+     * does not need a thread each.
+     */
+    private static synchronized ScheduledExecutorService getFlusher() {
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "BatchingListenerManager");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return flusher;
+    }
+}
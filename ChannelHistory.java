@@ -0,0 +1,155 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * A fixed-size ring of recent messages for one channel, stored off-heap.
+ * Each message occupies one slot holding its sequence number, timestamp,
+ * nick and text, plus a link to the previous message by the same nick.
+ * Only the latest sequence number per nick is kept on the heap, so lookups
+ * by nick follow the links instead of scanning the ring.
+ * @author Yizhe Shen
+ */
+public class ChannelHistory {
+    /* Large enough for any IRC line */
+    private static final int SLOT_SIZE = 512;
+    private static final int SEQ = 0;
+    private static final int TIME = 8;
+    private static final int PREV = 16;
+    private static final int NICK_LEN = 24;
+    private static final int TEXT_LEN = 25;
+    private static final int DATA = 27;
+
+    private final ByteBuffer ring;
+    private final int slots;
+    private final HashMap<String, Long> nickHeads;
+    private long nextSeq;
+
+    /**
+     * Creates an empty history.
+     * @param budget the memory budget in bytes
+     */
+    public ChannelHistory(int budget) {
+        slots = Math.max(1, budget / SLOT_SIZE);
+        ring = ByteBuffer.allocateDirect(slots * SLOT_SIZE);
+        nickHeads = new HashMap<>();
+        nextSeq = 1;
+    }
+
+    /**
+     * Appends a message, overwriting the oldest one once the ring is full.
+     * @param time the timestamp in milliseconds
+     * @param nick the sender's nick
+     * @param text the message
+     */
+    public synchronized void add(long time, String nick, String text) {
+        long seq = nextSeq++;
+        int base = offset(seq);
+
+        // Forget the nick of the message being overwritten if it was their latest
+        long oldSeq = ring.getLong(base + SEQ);
+        if (oldSeq != 0) {
+            String oldKey = readNick(base).toLowerCase();
+            Long head = nickHeads.get(oldKey);
+            if (head != null && head == oldSeq) {
+                nickHeads.remove(oldKey);
+            }
+        }
+
+        byte[] nickBytes = nick.getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+        int nickLen = Math.min(nickBytes.length, 255);
+        int textLen = Math.min(textBytes.length, SLOT_SIZE - DATA - nickLen);
+        String key = nick.toLowerCase();
+        Long prev = nickHeads.get(key);
+
+        ring.putLong(base + SEQ, seq);
+        ring.putLong(base + TIME, time);
+        ring.putLong(base + PREV, prev == null ? 0 : prev);
+        ring.put(base + NICK_LEN, (byte) nickLen);
+        ring.putShort(base + TEXT_LEN, (short) textLen);
+        for (int ctr = 0; ctr < nickLen; ctr++) {
+            ring.put(base + DATA + ctr, nickBytes[ctr]);
+        }
+        for (int ctr = 0; ctr < textLen; ctr++) {
+            ring.put(base + DATA + nickLen + ctr, textBytes[ctr]);
+        }
+        nickHeads.put(key, seq);
+    }
+
+    /**
+     * Returns the most recent messages, optionally only from one nick.
+     * @param nick the nick to match, or null for every message
+     * @param count the maximum number of messages
+     * @return formatted messages, oldest first
+     */
+    public synchronized List<String> get(String nick, int count) {
+        ArrayList<String> lines = new ArrayList<>();
+        long seq;
+        if (nick == null) {
+            seq = nextSeq - 1;
+        } else {
+            Long head = nickHeads.get(nick.toLowerCase());
+            seq = head == null ? 0 : head;
+        }
+        SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+        while (lines.size() < count && isLive(seq)) {
+            int base = offset(seq);
+            lines.add("[" + fmt.format(new Date(ring.getLong(base + TIME))) + "] <"
+                      + readNick(base) + "> " + readText(base));
+            seq = nick == null ? seq - 1 : ring.getLong(base + PREV);
+        }
+        Collections.reverse(lines);
+        return lines;
+    }
+
+    /**
+     * Checks that a message is still in the ring and not overwritten.
+     */
+    private boolean isLive(long seq) {
+        return seq > 0 && seq >= nextSeq - slots && ring.getLong(offset(seq) + SEQ) == seq;
+    }
+
+    private int offset(long seq) {
+        return (int) (seq % slots) * SLOT_SIZE;
+    }
+
+    private String readNick(int base) {
+        return readString(base + DATA, ring.get(base + NICK_LEN) & 0xff);
+    }
+
+    private String readText(int base) {
+        int nickLen = ring.get(base + NICK_LEN) & 0xff;
+        return readString(base + DATA + nickLen, ring.getShort(base + TEXT_LEN));
+    }
+
+    private String readString(int pos, int length) {
+        byte[] bytes = new byte[length];
+        for (int ctr = 0; ctr < length; ctr++) {
+            bytes[ctr] = ring.get(pos + ctr);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
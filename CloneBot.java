@@ -19,6 +19,8 @@
 
 package ircutil;
 
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.StringTokenizer;
 import org.pircbotx.PircBotX;
 import org.pircbotx.hooks.ListenerAdapter;
@@ -51,8 +53,23 @@ public class CloneBot extends PircBotX {
      * @throws java.lang.Exception
      */
     public CloneBot(String nick, String channels) throws Exception {
+        this(nick, channels, true);
+    }
+    
+    /**
+     * Creates a dummy IRC user, optionally with the default listener manager
+     * instead of one that batches JOIN, QUIT and NAMES bursts.
+     * @param nick the clone's nick
+     * @param channels the channel for the clone to join
+     * @param batchEvents true to coalesce event bursts
+     * @throws java.lang.Exception
+     */
+    public CloneBot(String nick, String channels, boolean batchEvents) throws Exception {
         super();
         version = "CloneBot";
+        if (batchEvents) {
+            setListenerManager(new BatchingListenerManager<CloneBot>());
+        }
         cloneChannels = channels;
         getListenerManager().addListener(new InitClone());
         getListenerManager().addListener(new Utilities(this, '@'));
@@ -61,6 +78,31 @@ public class CloneBot extends PircBotX {
         setLogin(nick);
     }
     
+    /**
+     * Connects the clone through a channel-backed socket so that it can
+     * take part in CloneBroadcast sends. On JDKs older than 13 it connects
+     * with a plain socket instead, and broadcasts use its output queue.
+     * @param server the server hostname
+     * @param port the server port
+     * @throws java.lang.Exception
+     */
+    public void connectClone(String server, int port) throws Exception {
+        if (CloneBroadcast.isChannelSupported()) {
+            connect(server, port, new CloneBroadcast.ChannelSocketFactory());
+        } else {
+            connect(server, port);
+        }
+    }
+    
+    /**
+     * Returns the channel behind the clone's socket.
+     * @return the SocketChannel, or null if the socket has none
+     */
+    public SocketChannel getSocketChannel() {
+        Socket s = socket;
+        return s == null ? null : s.getChannel();
+    }
+    
     /**
      * Patch to eliminate exceptions during shutdown of the bot by removing 
      * channel caching any reconnecting.
@@ -0,0 +1,223 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.net.SocketFactory;
+
+/**
+ * Sends the same raw lines from many CloneBots at once. The lines are
+ * encoded a single time into shared read-only buffers, which are then
+ * written to each clone's socket channel with a gathering write.
+ * 
+ * Channel-backed sockets are only used on JDK 13 or later. Before that, the
+ * socket adaptor's input and output streams share one lock, so the bot's
+ * output thread would stall while its input thread waits in read(). On
+ * older JDKs clones use plain sockets and broadcasts fall back to each
+ * clone's own output queue.
+ * @author Yizhe Shen
+ */
+public class CloneBroadcast {
+    /* IRC lines are limited to 512 bytes including CRLF */
+    private static final int MAX_LINE = 510;
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Checks if the running JDK's socket adaptors read and write without
+     * blocking each other, which is the case from JDK 13 on.
+     * @return true if channel-backed sockets are safe to use
+     */
+    public static boolean isChannelSupported() {
+        String version = System.getProperty("java.specification.version", "1.0");
+        if (version.startsWith("1.")) {
+            return false;
+        }
+        int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot < 0 ? version : version.substring(0, dot)) >= 13;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates sockets backed by a SocketChannel so that broadcasts can
+     * bypass the bot's writer. Only use it where isChannelSupported().
+     */
+    public static class ChannelSocketFactory extends SocketFactory {
+        @Override
+        public Socket createSocket() throws IOException {
+            return SocketChannel.open().socket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return createSocket(new InetSocketAddress(host, port), null);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return createSocket(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+        }
+
+        private Socket createSocket(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+            SocketChannel channel = SocketChannel.open();
+            try {
+                if (local != null) {
+                    channel.bind(local);
+                }
+                channel.connect(remote);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel.socket();
+        }
+    }
+
+    /**
+     * Encodes raw lines into read-only buffers, one per line, each
+     * terminated with CRLF. Lines are truncated to the IRC line limit,
+     * backing off so that no UTF-8 character is cut in half.
+     * @param lines the raw lines
+     * @return the encoded lines
+     */
+    public static ByteBuffer[] encode(String... lines) {
+        ByteBuffer[] payload = new ByteBuffer[lines.length];
+        for (int ctr = 0; ctr < lines.length; ctr++) {
+            byte[] bytes = lines[ctr].getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(bytes.length, MAX_LINE);
+            // Continuation bytes have the form 10xxxxxx
+            while (length < bytes.length && length > 0 && (bytes[length] & 0xc0) == 0x80) {
+                length--;
+            }
+            byte[] line = Arrays.copyOf(bytes, length + 2);
+            line[length] = '\r';
+            line[length+1] = '\n';
+            payload[ctr] = ByteBuffer.wrap(line).asReadOnlyBuffer();
+        }
+        return payload;
+    }
+
+    /**
+     * Sends encoded lines from every clone. Each clone gets its own view of
+     * the shared buffers, so the payload itself is never copied.
+     * @param clones the clones to send from
+     * @param payload the encoded lines from encode()
+     * @param staggerMillis delay between consecutive clones, 0 to send at once
+     * @return the number of clones sent from immediately, the rest being scheduled
+     */
+    public static int send(Collection<CloneBot> clones, final ByteBuffer[] payload, long staggerMillis) {
+        int sent = 0;
+        long delay = 0;
+        for (final CloneBot clone : clones) {
+            if (staggerMillis <= 0) {
+                write(clone, payload);
+                sent++;
+            } else {
+                getScheduler().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(clone, payload);
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                delay += staggerMillis;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Writes the encoded lines to a single clone's socket. Falls back to the
+     * bot's own output when the clone's socket has no channel.
+     * @param clone the clone
+     * @param payload the encoded lines
+     */
+    private static void write(CloneBot clone, ByteBuffer[] payload) {
+        SocketChannel channel = clone.getSocketChannel();
+        if (channel == null) {
+            for (ByteBuffer line : payload) {
+                ByteBuffer view = line.duplicate();
+                byte[] bytes = new byte[view.remaining() - 2];
+                view.get(bytes);
+                clone.sendRawLineNow(new String(bytes, StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        ByteBuffer[] views = new ByteBuffer[payload.length];
+        long remaining = 0;
+        for (int ctr = 0; ctr < payload.length; ctr++) {
+            views[ctr] = payload[ctr].duplicate();
+            remaining += views[ctr].remaining();
+        }
+        try {
+            // The channel's write lock is held for one write call only. A
+            // blocking channel normally writes the whole gather in that call,
+            // so the lines do not interleave with the bot's output. If a write
+            // does come back short, the rest is sent by later calls and the
+            // bot's output may land in between.
+            while (remaining > 0) {
+                remaining -= channel.write(views);
+            }
+        } catch (IOException e) {
+            clone.log("Error: " + e);
+        }
+    }
+
+    /**
+     * Returns the shared scheduler for staggered broadcasts.
+     * @return the scheduler
+     */
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (scheduler == null) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "CloneBroadcast");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import org.pircbotx.Channel;
+import org.pircbotx.User;
+
+/**
+ * A set of in-channel commands that is loaded on demand.
+ * @author Yizhe Shen
+ */
+public interface CommandModule {
+    /**
+     * Process an in-channel command declared by the module's provider.
+     * 
+     * @param channel the originating channel of the command
+     * @param user the user who made the command
+     * @param command the command, in lower case
+     * @param params the parameters after the command
+     * @param msg
+     */
+    void processCommand(Channel channel, User user, String command, String[] params, String msg);
+}
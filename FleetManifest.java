@@ -0,0 +1,203 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+
+/**
+ * Persists the clone fleet and the bot's joined channels so that they can
+ * be restored after a restart. Each clone takes one line of the form
+ * "C nick server port channels" and each channel one line of the form
+ * "J channel". Changes are coalesced and written in the background.
+ * @author Yizhe Shen
+ */
+public class FleetManifest {
+    private static final long WRITE_DELAY = 1000;
+
+    private final PircBotX bot;
+    private final String file;
+    private final LinkedHashSet<String> channels;
+    private ArrayList<CloneEntry> clones;
+    private final ScheduledExecutorService writer;
+    private boolean writePending;
+
+    /**
+     * A clone as recorded in the manifest.
+     */
+    public static class CloneEntry {
+        public final String nick;
+        public final String server;
+        public final int port;
+        public final String channels;
+
+        public CloneEntry(String entryNick, String entryServer, int entryPort, String entryChannels) {
+            nick = entryNick;
+            server = entryServer;
+            port = entryPort;
+            channels = entryChannels;
+        }
+    }
+
+    /**
+     * Creates the manifest and loads the saved fleet, if any.
+     * @param parent the bot, used for logging
+     * @param manifestFile the file path
+     */
+    public FleetManifest(PircBotX parent, String manifestFile) {
+        bot = parent;
+        file = manifestFile;
+        channels = new LinkedHashSet<>();
+        clones = new ArrayList<>();
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "FleetManifest");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        load();
+    }
+
+    /**
+     * Returns the clones currently recorded.
+     * @return a copy of the clone entries
+     */
+    public synchronized List<CloneEntry> getClones() {
+        return new ArrayList<>(clones);
+    }
+
+    /**
+     * Returns the channels currently recorded.
+     * @return a copy of the channel names
+     */
+    public synchronized List<String> getChannels() {
+        return new ArrayList<>(channels);
+    }
+
+    /**
+     * Records the current clone fleet.
+     * @param cloneList the running clones
+     */
+    public synchronized void setClones(Collection<CloneBot> cloneList) {
+        clones = new ArrayList<>();
+        for (CloneBot cBot : cloneList) {
+            clones.add(new CloneEntry(cBot.getName(), cBot.getServer(), cBot.getPort(), cBot.cloneChannels));
+        }
+        scheduleWrite();
+    }
+
+    /**
+     * Records a channel joined by the bot.
+     * @param channel the channel name
+     */
+    public synchronized void addChannel(String channel) {
+        if (channels.add(channel.toLowerCase())) {
+            scheduleWrite();
+        }
+    }
+
+    /**
+     * Forgets a channel parted by the bot.
+     * @param channel the channel name
+     */
+    public synchronized void removeChannel(String channel) {
+        if (channels.remove(channel.toLowerCase())) {
+            scheduleWrite();
+        }
+    }
+
+    private void scheduleWrite() {
+        if (!writePending) {
+            writePending = true;
+            writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, WRITE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the manifest to a temporary file and moves it into place so
+     * that a crash never leaves a partial manifest behind.
+     */
+    private void write() {
+        ArrayList<String> lines = new ArrayList<>();
+        synchronized (this) {
+            writePending = false;
+            for (CloneEntry e : clones) {
+                lines.add("C " + e.nick + " " + e.server + " " + e.port + " " + e.channels);
+            }
+            for (String channel : channels) {
+                lines.add("J " + channel);
+            }
+        }
+        String tmpFile = file + ".tmp";
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(tmpFile)))) {
+            for (String line : lines) {
+                out.println(line);
+            }
+        } catch (IOException e) {
+            bot.log("Error writing to " + tmpFile + "!");
+            return;
+        }
+        try {
+            Files.move(Paths.get(tmpFile), Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            bot.log("Error writing to " + file + "!");
+        }
+    }
+
+    private synchronized void load() {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 5 && parts[0].equals("C")) {
+                    try {
+                        clones.add(new CloneEntry(parts[1], parts[2], Integer.parseInt(parts[3]), parts[4]));
+                    } catch (NumberFormatException e) {
+                        bot.log("Skipping bad line in " + file + ": " + line);
+                    }
+                } else if (parts.length == 2 && parts[0].equals("J")) {
+                    channels.add(parts[1]);
+                }
+            }
+        } catch (IOException e) {
+            // No saved fleet
+        }
+    }
+}
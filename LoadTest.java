@@ -0,0 +1,545 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.JoinEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+
+/**
+ * Load-test harness that runs a CloneBot fleet against a local TestServer.
+ * Spawns the clones, drives scripted in-channel commands at a target rate
+ * and reports connect throughput, command round-trip latency, thread count
+ * and heap usage.
+ *
+ * With several servers, clones are spread over them by a ServerPool and
+ * command traffic is skipped; -failover then stops the first server and
+ * times how long the fleet takes to migrate.
+ *
+ * With -netsplit, a split and rejoin of that many remote users per channel
+ * is replayed instead of command traffic, timing how long the clones and a
+ * main bot in every channel take to process the storm and how much CPU
+ * time it costs. The main bot runs a full Utilities, so its seen and spam
+ * checks are included. -nobatch gives every bot the default listener
+ * manager for comparison.
+ *
+ * Usage: java ircutil.LoadTest [-clones n] [-rate commands/sec] [-seconds n]
+ *        [-perchannel n] [-connectthreads n] [-delay ms] [-penalty ms window]
+ *        [-servers n] [-failover] [-netsplit users] [-nobatch]
+ * @author Yizhe Shen
+ */
+public class LoadTest {
+    /* Pause between a replayed netsplit and the rejoin */
+    private static final long REJOIN_DELAY = 1000;
+    /* Core commands only, since clones do not load the toys module */
+    private static final String[] SCRIPT = {"time", "channels", "uptime"};
+
+    private int numClones = 100;
+    private int rate = 20;
+    private int seconds = 30;
+    private int perChannel = 10;
+    private int connectThreads = 8;
+    private long messageDelay = 0;
+    private long penalty = 0;
+    private long penaltyWindow = 10000;
+    private int numServers = 1;
+    private boolean failover;
+    private int splitUsers;
+    private boolean batchEvents = true;
+
+    private ArrayList<TestServer> servers;
+    private ArrayList<CloneBot> clones;
+    private ServerPool serverPool;
+    private PircBotX mainBot;
+    private Driver driver;
+
+    /* Raw client that sends commands and times the clones' replies */
+    private static class Driver extends Thread {
+        Socket socket;
+        BufferedWriter out;
+        BufferedReader in;
+        String nick = "driver";
+        // Send times of commands, per channel, in order
+        HashMap<String, ArrayList<Long>> sendTimes = new HashMap<>();
+        // Replies seen so far, per channel and clone
+        HashMap<String, HashMap<String, Integer>> replyCounts = new HashMap<>();
+        long[] latencies = new long[1024];
+        int numLatencies;
+
+        Driver(int port) throws IOException {
+            super("LoadTest-Driver");
+            setDaemon(true);
+            socket = new Socket("127.0.0.1", port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        synchronized void send(String line) throws IOException {
+            out.write(line + "\r\n");
+            out.flush();
+        }
+
+        void register() throws IOException {
+            send("NICK " + nick);
+            send("USER " + nick + " 0 * :LoadTest driver");
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.contains(" 001 ")) {
+                    return;
+                }
+            }
+            throw new IOException("Driver registration failed");
+        }
+
+        synchronized void command(String channel, String command) throws IOException {
+            ArrayList<Long> times = sendTimes.get(channel);
+            if (times == null) {
+                times = new ArrayList<>();
+                sendTimes.put(channel, times);
+                replyCounts.put(channel, new HashMap<String, Integer>());
+            }
+            times.add(System.nanoTime());
+            out.write("PRIVMSG " + channel + " :@" + command + "\r\n");
+            out.flush();
+        }
+
+        synchronized void reply(String nick, String channel) {
+            long now = System.nanoTime();
+            ArrayList<Long> times = sendTimes.get(channel);
+            if (times == null) {
+                return;
+            }
+            HashMap<String, Integer> counts = replyCounts.get(channel);
+            Integer n = counts.get(nick);
+            int index = n == null ? 0 : n;
+            counts.put(nick, index + 1);
+            if (index >= times.size()) {
+                return;
+            }
+            if (numLatencies == latencies.length) {
+                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+            }
+            latencies[numLatencies++] = now - times.get(index);
+        }
+
+        synchronized long[] getLatencies() {
+            return Arrays.copyOf(latencies, numLatencies);
+        }
+
+        @Override
+        public void run() {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("PING ")) {
+                        send("PONG " + line.substring(5));
+                        continue;
+                    }
+                    // :nick!login@host PRIVMSG #chan :text
+                    String[] parts = line.split(" ", 4);
+                    if (parts.length == 4 && parts[1].equals("PRIVMSG") && parts[2].startsWith("#")) {
+                        int bang = parts[0].indexOf('!');
+                        if (bang > 1) {
+                            reply(parts[0].substring(1, bang), parts[2]);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed at shutdown
+            }
+        }
+    }
+
+    /**
+     * Parses the command line arguments.
+     * @param args the arguments
+     */
+    private void parseArgs(String[] args) {
+        for (int ctr = 0; ctr < args.length; ctr++) {
+            String arg = args[ctr];
+            if (arg.equals("-clones")) {
+                numClones = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-rate")) {
+                rate = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-seconds")) {
+                seconds = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-perchannel")) {
+                perChannel = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-connectthreads")) {
+                connectThreads = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-delay")) {
+                messageDelay = Long.parseLong(args[++ctr]);
+            } else if (arg.equals("-servers")) {
+                numServers = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-failover")) {
+                failover = true;
+            } else if (arg.equals("-netsplit")) {
+                splitUsers = Integer.parseInt(args[++ctr]);
+            } else if (arg.equals("-nobatch")) {
+                batchEvents = false;
+            } else if (arg.equals("-penalty")) {
+                penalty = Long.parseLong(args[++ctr]);
+                penaltyWindow = Long.parseLong(args[++ctr]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+    }
+
+    /**
+     * Returns the channel that the specified clone joins.
+     * @param index the clone index
+     * @return the channel name
+     */
+    private String channelFor(int index) {
+        return "#load" + (index / perChannel);
+    }
+
+    /**
+     * Connects the clone fleet in parallel and reports throughput.
+     * @throws Exception
+     */
+    private void connectClones() throws Exception {
+        clones = new ArrayList<>();
+        for (int ctr = 0; ctr < numClones; ctr++) {
+            CloneBot clone = new CloneBot("clone" + ctr, channelFor(ctr), batchEvents);
+            clone.setVerbose(false);
+            clone.setMessageDelay(messageDelay);
+            clones.add(clone);
+        }
+
+        final AtomicInteger failures = new AtomicInteger();
+        final int port = servers.get(0).getPort();
+        if (numServers > 1) {
+            ArrayList<ServerPool.Endpoint> endpoints = new ArrayList<>();
+            for (TestServer s : servers) {
+                endpoints.add(new ServerPool.Endpoint("127.0.0.1", s.getPort(), 1));
+            }
+            serverPool = new ServerPool(new PircBotX(), endpoints);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(connectThreads);
+        long start = System.nanoTime();
+        for (final CloneBot clone : clones) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (serverPool != null) {
+                            serverPool.connect(clone);
+                        } else {
+                            clone.connectClone("127.0.0.1", port);
+                        }
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(10, TimeUnit.MINUTES);
+
+        // Wait for every clone to land in its channel
+        waitForJoins(numClones - failures.get(), servers);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("Connected %d clones (%d failed) in %.3f s: %.1f clones/s",
+                numClones - failures.get(), failures.get(), elapsed, (numClones - failures.get()) / elapsed));
+        if (serverPool != null) {
+            System.out.println("Distribution: " + serverPool.getDistribution());
+        }
+    }
+
+    /**
+     * Stops the first server and times how long its clones take to
+     * migrate to the remaining servers.
+     * @throws Exception
+     */
+    private void failOver() throws Exception {
+        int expected = 0;
+        for (TestServer s : servers) {
+            expected += joinedCount(s);
+        }
+        long start = System.nanoTime();
+        servers.get(0).stop();
+        List<TestServer> remaining = servers.subList(1, servers.size());
+        int joined = waitForJoins(expected, remaining);
+        System.out.println(String.format("Failover: %d of %d clones back in their channels after %.3f s",
+                joined, expected, (System.nanoTime() - start) / 1e9));
+        System.out.println("Distribution: " + serverPool.getDistribution());
+    }
+
+    /**
+     * Connects a main bot with its own Utilities to the first server and
+     * joins it to every clone channel.
+     * @throws Exception
+     */
+    private void connectMainBot() throws Exception {
+        mainBot = new PircBotX();
+        mainBot.setName("mainbot");
+        mainBot.setVerbose(false);
+        new Utilities(mainBot, '@', batchEvents);
+        mainBot.connect("127.0.0.1", servers.get(0).getPort());
+        int numChannels = (numClones + perChannel - 1) / perChannel;
+        for (int ctr = 0; ctr < numChannels; ctr++) {
+            mainBot.joinChannel("#load" + ctr);
+        }
+        waitForJoins(joinedCount(servers.get(0)) + numChannels, servers);
+    }
+
+    /**
+     * Replays a netsplit in every clone channel and times how long the
+     * clones take to process the resulting JOIN and QUIT storm.
+     * @throws Exception
+     */
+    private void netsplit() throws Exception {
+        final AtomicLong delivered = new AtomicLong();
+        ListenerAdapter<PircBotX> probe = new ListenerAdapter<PircBotX>() {
+            @Override
+            public void onJoin(JoinEvent<PircBotX> event) {
+                if (event.getUser().getNick().startsWith("split")) {
+                    delivered.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onQuit(QuitEvent<PircBotX> event) {
+                if (event.getUser().getNick().startsWith("split")) {
+                    delivered.incrementAndGet();
+                }
+            }
+        };
+        long batchesBefore = 0;
+        int listeners = 0;
+        for (CloneBot clone : clones) {
+            clone.getListenerManager().addListener(probe);
+            listeners = clone.getListenerManager().getListeners().size();
+            batchesBefore += getBatchCount(clone);
+        }
+        mainBot.getListenerManager().addListener(probe);
+        long mainBatchesBefore = getBatchCount(mainBot);
+
+        ArrayList<String> channels = new ArrayList<>();
+        int numChannels = (numClones + perChannel - 1) / perChannel;
+        for (int ctr = 0; ctr < numChannels; ctr++) {
+            channels.add("#load" + ctr);
+        }
+        long cpuStart = getCpuTime();
+        long start = System.nanoTime();
+        int perMember = servers.get(0).replayNetsplit(channels, splitUsers, REJOIN_DELAY);
+        long expected = (long) joinedCount(servers.get(0)) * perMember;
+        long deadline = System.currentTimeMillis() + 60000;
+        while (delivered.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        double elapsed = (System.nanoTime() - start - TimeUnit.MILLISECONDS.toNanos(REJOIN_DELAY)) / 1e9;
+        // Let batches still held or running on the listener pools finish
+        Thread.sleep(1000);
+        double cpu = (getCpuTime() - cpuStart) / 1e9;
+
+        long batches = -batchesBefore;
+        for (CloneBot clone : clones) {
+            batches += getBatchCount(clone);
+        }
+        long dispatches = batchEvents ? batches * listeners : delivered.get() * listeners;
+        System.out.println(String.format("Netsplit: %d of %d events delivered in %.3f s (excluding rejoin delay)",
+                delivered.get(), expected, elapsed));
+        System.out.println(String.format("Listener dispatches: %d to %d listeners per clone%s", dispatches, listeners,
+                batchEvents ? String.format(" (%d batches)", batches) : ", unbatched"));
+        System.out.println(String.format("Main bot: %d events in %s", (long) numChannels * perMember,
+                batchEvents ? (getBatchCount(mainBot) - mainBatchesBefore) + " batches" : "single dispatches"));
+        System.out.println(String.format("CPU time: %.3f s", cpu));
+    }
+
+    private static long getBatchCount(PircBotX bot) {
+        if (bot.getListenerManager() instanceof BatchingListenerManager) {
+            return ((BatchingListenerManager<?>) bot.getListenerManager()).getBatchCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the CPU time used so far by all live threads.
+     */
+    private static long getCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long time = threads.getThreadCpuTime(id);
+            if (time > 0) {
+                total += time;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Waits up to a minute for the specified number of clones to be in
+     * their channels across the given servers.
+     * @return the number of clones in their channels
+     */
+    private int waitForJoins(int expected, List<TestServer> on) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 60000;
+        int joined = 0;
+        while (System.currentTimeMillis() < deadline) {
+            joined = 0;
+            for (TestServer s : on) {
+                joined += joinedCount(s);
+            }
+            if (joined >= expected) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        return joined;
+    }
+
+    private int joinedCount(TestServer s) {
+        int numChannels = (numClones + perChannel - 1) / perChannel;
+        int total = 0;
+        for (int ctr = 0; ctr < numChannels; ctr++) {
+            total += s.getMemberCount("#load" + ctr);
+        }
+        return total;
+    }
+
+    /**
+     * Sends scripted commands round-robin over the clone channels at the
+     * target rate.
+     * @throws Exception
+     */
+    private void driveTraffic() throws Exception {
+        driver = new Driver(servers.get(0).getPort());
+        driver.register();
+        int numChannels = (numClones + perChannel - 1) / perChannel;
+        for (int ctr = 0; ctr < numChannels; ctr++) {
+            driver.send("JOIN #load" + ctr);
+        }
+        driver.start();
+        Thread.sleep(1000);
+
+        long interval = 1000000000L / rate;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        int sent = 0;
+        for (long next = start; next < end; next += interval) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            driver.command("#load" + (sent % numChannels), SCRIPT[sent % SCRIPT.length]);
+            sent++;
+        }
+        // Allow stragglers to arrive
+        Thread.sleep(2000);
+        System.out.println(String.format("Sent %d commands over %d s (%d/s target)", sent, seconds, rate));
+    }
+
+    /**
+     * Prints latency percentiles, thread count and heap usage.
+     */
+    private void report() {
+        if (driver != null) {
+            long[] lat = driver.getLatencies();
+            Arrays.sort(lat);
+            System.out.println("Replies received: " + lat.length);
+            if (lat.length > 0) {
+                System.out.println(String.format("Round-trip ms: p50=%.2f p90=%.2f p99=%.2f max=%.2f",
+                        percentile(lat, 50), percentile(lat, 90), percentile(lat, 99), lat[lat.length-1] / 1e6));
+            }
+        }
+        long lines = 0;
+        for (TestServer s : servers) {
+            lines += s.getLineCount();
+        }
+        System.out.println("Lines received by servers: " + lines);
+        System.out.println("Live threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+        System.gc();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.println(String.format("Heap used: %.1f MB (%.1f KB per clone)",
+                heap.getUsed() / 1048576.0, heap.getUsed() / 1024.0 / Math.max(1, numClones)));
+    }
+
+    private static double percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private void shutdown() {
+        if (mainBot != null) {
+            mainBot.quitServer("Load test complete.");
+        }
+        for (CloneBot clone : clones) {
+            if (serverPool != null) {
+                serverPool.retire(clone);
+            }
+            clone.quitServer("Load test complete.");
+        }
+        for (TestServer s : servers) {
+            s.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+        test.parseArgs(args);
+        test.servers = new ArrayList<>();
+        for (int ctr = 0; ctr < test.numServers; ctr++) {
+            TestServer s = new TestServer(0);
+            s.setFloodPenalty(test.penalty, test.penaltyWindow, false);
+            s.start();
+            test.servers.add(s);
+            System.out.println("TestServer listening on port " + s.getPort());
+        }
+
+        test.connectClones();
+        if (test.splitUsers > 0) {
+            test.connectMainBot();
+            test.netsplit();
+        } else if (test.numServers > 1) {
+            // Channels are not shared between unlinked servers, so only placement is measured
+            if (test.failover) {
+                test.failOver();
+            }
+        } else {
+            test.driveTraffic();
+        }
+        test.report();
+        test.shutdown();
+        System.exit(0);
+    }
+}
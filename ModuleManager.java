@@ -0,0 +1,125 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import org.pircbotx.Channel;
+import org.pircbotx.PircBotX;
+import org.pircbotx.User;
+
+/**
+ * Routes in-channel commands to the modules that declare them. The list of
+ * providers is discovered once and shared, while each bot creates a module
+ * only the first time one of its commands is used, so a bot that never
+ * sees a module's commands never pays for it.
+ * @author Yizhe Shen
+ */
+public class ModuleManager {
+    private static List<ModuleProvider> providers;
+
+    private final PircBotX bot;
+    private final HashMap<String, ModuleProvider> commandMap;
+    private final HashMap<ModuleProvider, CommandModule> modules;
+
+    /**
+     * Creates a manager for the modules a bot may load. CloneBots only get
+     * the modules whose providers allow it.
+     * @param parent the bot
+     */
+    public ModuleManager(PircBotX parent) {
+        bot = parent;
+        commandMap = new LinkedHashMap<>();
+        modules = new HashMap<>();
+        boolean isClone = parent instanceof CloneBot;
+        for (ModuleProvider p : getProviders()) {
+            if (isClone && !p.isLoadedOnClones()) {
+                continue;
+            }
+            for (String command : p.getCommands()) {
+                commandMap.put(command.toLowerCase(), p);
+            }
+        }
+    }
+
+    /**
+     * Passes a command to the module that declares it, creating the module
+     * if needed.
+     * @param channel the originating channel of the command
+     * @param user the user who made the command
+     * @param command the command
+     * @param params the parameters after the command
+     * @param msg
+     * @return true if a module handled the command
+     */
+    public boolean processCommand(Channel channel, User user, String command, String[] params, String msg) {
+        String name = command.toLowerCase();
+        ModuleProvider p = commandMap.get(name);
+        if (p == null) {
+            return false;
+        }
+        getModule(p).processCommand(channel, user, name, params, msg);
+        return true;
+    }
+
+    /**
+     * Returns the commands available from modules on this bot.
+     * @return the command names
+     */
+    public Set<String> getCommands() {
+        return Collections.unmodifiableSet(commandMap.keySet());
+    }
+
+    /**
+     * Returns the names of the modules created so far.
+     * @return the module names
+     */
+    public synchronized List<String> getLoaded() {
+        ArrayList<String> names = new ArrayList<>();
+        for (ModuleProvider p : modules.keySet()) {
+            names.add(p.getName());
+        }
+        return names;
+    }
+
+    private synchronized CommandModule getModule(ModuleProvider p) {
+        CommandModule module = modules.get(p);
+        if (module == null) {
+            module = p.create(bot);
+            modules.put(p, module);
+            bot.log("Loaded module " + p.getName() + ".");
+        }
+        return module;
+    }
+
+    /**
+     * Discovers the providers on the classpath the first time any bot
+     * needs them.
+     */
+    private static synchronized List<ModuleProvider> getProviders() {
+        if (providers == null) {
+            ArrayList<ModuleProvider> list = new ArrayList<>();
+            for (ModuleProvider p : ServiceLoader.load(ModuleProvider.class)) {
+                list.add(p);
+            }
+            providers = Collections.unmodifiableList(list);
+        }
+        return providers;
+    }
+}
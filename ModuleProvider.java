@@ -0,0 +1,57 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import org.pircbotx.PircBotX;
+
+/**
+ * Declares a command module to the ModuleManager. Providers are found
+ * through ServiceLoader and listed in META-INF/services/ircutil.ModuleProvider.
+ * A provider should be cheap to construct, since every bot loads all of
+ * them; the module itself is only created when one of its commands is
+ * first used.
+ * @author Yizhe Shen
+ */
+public interface ModuleProvider {
+    /**
+     * Returns the name of the module.
+     * @return the module name
+     */
+    String getName();
+    
+    /**
+     * Returns the in-channel commands handled by the module.
+     * @return the command names, in lower case
+     */
+    String[] getCommands();
+    
+    /**
+     * Checks if CloneBots should load the module.
+     * @return true if clones handle the module's commands
+     */
+    boolean isLoadedOnClones();
+    
+    /**
+     * Creates the module for a bot.
+     * @param bot the bot that will use the module
+     * @return the module
+     */
+    CommandModule create(PircBotX bot);
+}
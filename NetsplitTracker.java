@@ -0,0 +1,92 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Remembers users lost in a netsplit so that their joins can be recognized
+ * as rejoins when the split heals.
+ * @author Yizhe Shen
+ */
+public class NetsplitTracker {
+    /* How long a user lost in a netsplit is remembered for their rejoin */
+    private static final long SPLIT_MEMORY = 30 * 60000;
+    private static final int MAX_SPLIT_NICKS = 100000;
+    /* Netsplit quits carry the two server names as the reason */
+    private static final Pattern SPLIT_REASON = Pattern.compile("[\\w-]+(\\.[\\w-]+)+ [\\w-]+(\\.[\\w-]+)+");
+
+    private final HashMap<String, Long> splitNicks;
+
+    public NetsplitTracker() {
+        splitNicks = new HashMap<>();
+    }
+
+    /**
+     * Checks if a quit reason is a netsplit.
+     * @param reason the quit reason
+     * @return true if the reason is of the form "server1 server2"
+     */
+    public static boolean isSplit(String reason) {
+        return reason != null && SPLIT_REASON.matcher(reason).matches();
+    }
+
+    /**
+     * Records a quit, remembering the user if the quit was a netsplit.
+     * @param nick the nick
+     * @param reason the quit reason
+     * @param time the time of the quit
+     * @return true if the quit was a netsplit
+     */
+    public synchronized boolean quit(String nick, String reason, long time) {
+        if (!isSplit(reason)) {
+            return false;
+        }
+        splitNicks.put(nick.toLowerCase(), time);
+        if (splitNicks.size() > MAX_SPLIT_NICKS) {
+            Iterator<Long> it = splitNicks.values().iterator();
+            while (it.hasNext()) {
+                if (time - it.next() >= SPLIT_MEMORY) {
+                    it.remove();
+                }
+            }
+            if (splitNicks.size() > MAX_SPLIT_NICKS) {
+                splitNicks.clear();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks a join. The user is not forgotten, since a user returning from
+     * a split rejoins each of their channels.
+     * @param nick the nick
+     * @param time the time of the join
+     * @return true if the user is returning from a recent netsplit
+     */
+    public synchronized boolean join(String nick, long time) {
+        if (splitNicks.isEmpty()) {
+            return false;
+        }
+        Long lost = splitNicks.get(nick.toLowerCase());
+        return lost != null && time - lost < SPLIT_MEMORY;
+    }
+}
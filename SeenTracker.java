@@ -0,0 +1,423 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+
+/**
+ * Records when and where each nick was last seen. Entries live in an
+ * open-addressing table of parallel primitive arrays keyed by a 64-bit hash
+ * of the nick, so each slot costs a fixed 21 bytes. Once the table fills
+ * up, the oldest quarter of the entries is dropped in place. The table is
+ * snapshotted periodically and at shutdown, and restored on startup by
+ * mapping the snapshot file.
+ * @author Yizhe Shen
+ */
+public class SeenTracker {
+    public static final byte SPOKE = 1;
+    public static final byte JOINED = 2;
+    public static final byte PARTED = 3;
+    public static final byte QUIT = 4;
+
+    private static final int MAGIC = 0x5345454e;
+    private static final long SNAPSHOT_INTERVAL = 5;
+    private static final int SAMPLE_SIZE = 1024;
+    /* Slots copied per lock hold while writing a snapshot */
+    private static final int CHUNK = 1 << 16;
+
+    private final PircBotX bot;
+    private final String file;
+    private final int capacity;
+    private final int maxSize;
+    private long[] keys;
+    private long[] times;
+    private int[] chanIds;
+    private byte[] kinds;
+    private int size;
+    private int evictions;
+    private final HashMap<String, Integer> channelIds;
+    private final ArrayList<String> channelNames;
+    private boolean modified;
+    /* Keeps the periodic and shutdown snapshots from writing at once */
+    private final Object saveLock = new Object();
+
+    /**
+     * A single lookup result.
+     */
+    public static class Sighting {
+        public final long time;
+        public final byte kind;
+        public final String channel;
+
+        private Sighting(long sightingTime, byte sightingKind, String sightingChannel) {
+            time = sightingTime;
+            kind = sightingKind;
+            channel = sightingChannel;
+        }
+    }
+
+    /**
+     * Creates a tracker and restores the last snapshot, if any.
+     * @param parent the bot, used for logging
+     * @param tableSize the number of slots, rounded up to a power of two
+     * @param snapshotFile the file path for snapshots
+     */
+    public SeenTracker(PircBotX parent, int tableSize, String snapshotFile) {
+        bot = parent;
+        file = snapshotFile;
+        capacity = Integer.highestOneBit(Math.max(16, tableSize - 1)) << 1;
+        maxSize = capacity / 4 * 3;
+        keys = new long[capacity];
+        times = new long[capacity];
+        chanIds = new int[capacity];
+        kinds = new byte[capacity];
+        channelIds = new HashMap<>();
+        channelNames = new ArrayList<>();
+        load();
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SeenTracker");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SNAPSHOT_INTERVAL, SNAPSHOT_INTERVAL, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                save();
+            }
+        });
+    }
+
+    /**
+     * Records a sighting of a nick.
+     * @param nick the nick
+     * @param kind SPOKE, JOINED, PARTED or QUIT
+     * @param channel the channel, or null if not applicable
+     * @param time the time in milliseconds
+     */
+    public synchronized void record(String nick, byte kind, String channel, long time) {
+        put(nick, kind, channel, time);
+    }
+
+    /**
+     * Records a burst of sightings under a single lock, such as a batch of
+     * joins and quits. The arrays are parallel and read in order.
+     * @param nicks the nicks
+     * @param kindList the kind of each sighting
+     * @param channels the channel of each sighting, or null entries
+     * @param timeList the time of each sighting
+     * @param count the number of sightings
+     */
+    public synchronized void recordAll(String[] nicks, byte[] kindList, String[] channels, long[] timeList, int count) {
+        for (int ctr = 0; ctr < count; ctr++) {
+            put(nicks[ctr], kindList[ctr], channels[ctr], timeList[ctr]);
+        }
+    }
+
+    private void put(String nick, byte kind, String channel, long time) {
+        if (size >= maxSize) {
+            evictOldest();
+        }
+        long key = hash(nick);
+        int idx = find(keys, key);
+        if (keys[idx] == 0) {
+            keys[idx] = key;
+            size++;
+        }
+        times[idx] = time;
+        kinds[idx] = kind;
+        chanIds[idx] = internChannel(channel);
+        modified = true;
+    }
+
+    /**
+     * Looks up the last sighting of a nick.
+     * @param nick the nick
+     * @return the sighting, or null if never seen
+     */
+    public synchronized Sighting get(String nick) {
+        int idx = find(keys, hash(nick));
+        if (keys[idx] == 0) {
+            return null;
+        }
+        int id = chanIds[idx];
+        return new Sighting(times[idx], kinds[idx], id < 0 ? null : channelNames.get(id));
+    }
+
+    /**
+     * Returns the number of tracked nicks.
+     * @return the entry count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the 64-bit FNV-1a hash of a nick, ignoring case. Zero marks an
+     * empty slot, so it is never returned.
+     */
+    private static long hash(String nick) {
+        long h = 0xcbf29ce484222325L;
+        for (int ctr = 0; ctr < nick.length(); ctr++) {
+            h ^= Character.toLowerCase(nick.charAt(ctr));
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Returns the slot holding a key, or the empty slot where it belongs.
+     */
+    private static int find(long[] table, long key) {
+        int mask = table.length - 1;
+        int idx = (int) (key ^ (key >>> 32)) & mask;
+        while (table[idx] != 0 && table[idx] != key) {
+            idx = (idx + 1) & mask;
+        }
+        return idx;
+    }
+
+    private int internChannel(String channel) {
+        if (channel == null) {
+            return -1;
+        }
+        String name = channel.toLowerCase();
+        Integer id = channelIds.get(name);
+        if (id == null) {
+            id = channelNames.size();
+            channelIds.put(name, id);
+            channelNames.add(name);
+        }
+        return id;
+    }
+
+    /**
+     * Drops roughly the oldest quarter of entries, using a sample of the
+     * timestamps to pick the cutoff. Survivors are re-seated in place, so
+     * no new table is allocated.
+     */
+    private void evictOldest() {
+        long[] sample = new long[SAMPLE_SIZE];
+        int n = 0;
+        int step = Math.max(1, capacity / (SAMPLE_SIZE * 4));
+        for (int idx = 0; idx < capacity && n < SAMPLE_SIZE; idx += step) {
+            if (keys[idx] != 0) {
+                sample[n++] = times[idx];
+            }
+        }
+        Arrays.sort(sample, 0, n);
+        long cutoff = n == 0 ? Long.MAX_VALUE : sample[n / 4];
+
+        int empty = -1;
+        for (int idx = 0; idx < capacity; idx++) {
+            if (keys[idx] != 0 && times[idx] <= cutoff) {
+                keys[idx] = 0;
+                size--;
+            }
+            if (keys[idx] == 0 && empty < 0) {
+                empty = idx;
+            }
+        }
+        // Starting after an empty slot, each probe chain is re-seated from
+        // its start, so survivors move up into the slots that were freed
+        int mask = capacity - 1;
+        for (int ctr = 1; ctr <= capacity; ctr++) {
+            int idx = (empty + ctr) & mask;
+            long key = keys[idx];
+            if (key == 0) {
+                continue;
+            }
+            keys[idx] = 0;
+            int dest = find(keys, key);
+            keys[dest] = key;
+            times[dest] = times[idx];
+            chanIds[dest] = chanIds[idx];
+            kinds[dest] = kinds[idx];
+        }
+        evictions++;
+        bot.log("SeenTracker evicted entries older than " + new Date(cutoff) + ", " + size + " remain.");
+    }
+
+    /**
+     * Writes a snapshot of the table if anything has changed since the last
+     * one. The table is copied a chunk at a time, so sightings are only
+     * held up briefly, and the snapshot is written to a temporary file that
+     * is moved into place once complete. If entries are evicted meanwhile,
+     * the snapshot is abandoned until the next save.
+     */
+    public void save() {
+        synchronized (saveLock) {
+            int evictionCount;
+            synchronized (this) {
+                if (!modified) {
+                    return;
+                }
+                modified = false;
+                evictionCount = evictions;
+            }
+            Path tmp = Paths.get(file + ".tmp");
+            boolean complete = false;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING)) {
+                complete = writeSnapshot(out, evictionCount);
+            } catch (IOException e) {
+                bot.log("Error writing to " + tmp + "!");
+            }
+            if (complete) {
+                try {
+                    Files.move(tmp, Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return;
+                } catch (IOException e) {
+                    bot.log("Error writing to " + file + "!");
+                }
+            }
+            synchronized (this) {
+                modified = true;
+            }
+        }
+    }
+
+    /**
+     * Writes the table column by column and then the header. A slot's key
+     * only changes when entries are evicted, so a key written earlier still
+     * matches the time, channel and kind written after it.
+     * @return false if entries were evicted before the table was written
+     */
+    private boolean writeSnapshot(FileChannel out, int evictionCount) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocateDirect(CHUNK * 8);
+        out.position(16);
+        int count = 0;
+        for (int column = 0; column < 4; column++) {
+            for (int start = 0; start < capacity; start += CHUNK) {
+                int len = Math.min(CHUNK, capacity - start);
+                buf.clear();
+                synchronized (this) {
+                    if (evictions != evictionCount) {
+                        return false;
+                    }
+                    if (column == 0) {
+                        buf.asLongBuffer().put(keys, start, len);
+                        buf.position(len * 8);
+                        for (int idx = start; idx < start + len; idx++) {
+                            if (keys[idx] != 0) {
+                                count++;
+                            }
+                        }
+                    } else if (column == 1) {
+                        buf.asLongBuffer().put(times, start, len);
+                        buf.position(len * 8);
+                    } else if (column == 2) {
+                        buf.asIntBuffer().put(chanIds, start, len);
+                        buf.position(len * 4);
+                    } else {
+                        buf.put(kinds, start, len);
+                    }
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+        }
+        // Copied last, since names are only ever added and every id written
+        // above must have one
+        ArrayList<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(channelNames);
+        }
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(2 + bytes.length);
+            entry.putShort((short) bytes.length).put(bytes).flip();
+            while (entry.hasRemaining()) {
+                out.write(entry);
+            }
+        }
+        ByteBuffer header = ByteBuffer.allocate(16);
+        header.putInt(MAGIC).putInt(capacity).putInt(count).putInt(names.size()).flip();
+        while (header.hasRemaining()) {
+            out.write(header, header.position());
+        }
+        out.force(true);
+        return true;
+    }
+
+    /**
+     * Restores the table from the snapshot file, if present and compatible.
+     */
+    private synchronized void load() {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (map.remaining() < 16 || map.getInt() != MAGIC || map.getInt() != capacity) {
+                bot.log("Ignoring incompatible " + file + ".");
+                return;
+            }
+            size = map.getInt();
+            int numChannels = map.getInt();
+            map.asLongBuffer().get(keys);
+            map.position(map.position() + capacity * 8);
+            map.asLongBuffer().get(times);
+            map.position(map.position() + capacity * 8);
+            map.asIntBuffer().get(chanIds);
+            map.position(map.position() + capacity * 4);
+            map.get(kinds);
+            for (int ctr = 0; ctr < numChannels; ctr++) {
+                byte[] bytes = new byte[map.getShort()];
+                map.get(bytes);
+                String name = new String(bytes, StandardCharsets.UTF_8);
+                channelIds.put(name, ctr);
+                channelNames.add(name);
+            }
+        } catch (IOException e) {
+            // No snapshot yet
+        } catch (RuntimeException e) {
+            bot.log("Error reading " + file + ": " + e);
+            Arrays.fill(keys, 0);
+            channelIds.clear();
+            channelNames.clear();
+            size = 0;
+        }
+    }
+}
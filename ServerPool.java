@@ -0,0 +1,369 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.DisconnectEvent;
+
+/**
+ * Places CloneBots across a list of server endpoints. Each clone goes to
+ * the endpoint with the fewest connections relative to its weight. When a
+ * clone is dropped by its server, it is reconnected to the least loaded
+ * endpoint, retrying with a growing delay until it is placed or retired. An
+ * endpoint that refuses connections, or drops several clones
+ * in a short time, is marked down for a while.
+ * @author Yizhe Shen
+ */
+public class ServerPool {
+    private static final int DEFAULT_PORT = 6667;
+    private static final long DOWN_TIME = 60000;
+    private static final long RETRY_DELAY = 5000;
+    private static final long MAX_RETRY_DELAY = 300000;
+    /* Drops from an endpoint within the window that mark it down */
+    private static final int DROP_LIMIT = 3;
+    private static final long DROP_WINDOW = 30000;
+
+    private final PircBotX bot;
+    private final ArrayList<Endpoint> endpoints;
+    private final HashMap<CloneBot, Endpoint> placement;
+    private final HashSet<CloneBot> migrating;
+    private final Monitor monitor;
+    private ScheduledExecutorService migrator;
+    private volatile Runnable fleetChangeHandler;
+
+    /**
+     * A server that clones can connect to.
+     */
+    public static class Endpoint {
+        public final String host;
+        public final int port;
+        public final int weight;
+        private int connections;
+        private long downUntil;
+        private int drops;
+        private long dropWindowStart;
+
+        public Endpoint(String endpointHost, int endpointPort, int endpointWeight) {
+            host = endpointHost;
+            port = endpointPort;
+            weight = Math.max(1, endpointWeight);
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /*
+     * Migrates clones that are disconnected without being retired. A single
+     * drop may be a kill or a flood disconnect of that clone alone, so the
+     * endpoint is only marked down after several drops in a short window.
+     */
+    private class Monitor extends ListenerAdapter<CloneBot> {
+        @Override
+        public void onDisconnect(DisconnectEvent<CloneBot> event) {
+            final CloneBot clone = event.getBot();
+            Endpoint lost;
+            synchronized (ServerPool.this) {
+                lost = placement.remove(clone);
+                if (lost == null) {
+                    return;
+                }
+                lost.connections--;
+                recordDrop(lost);
+                migrating.add(clone);
+            }
+            bot.log("Clone " + clone.getNick() + " lost " + lost + ", migrating...");
+            migrate(clone, 0);
+        }
+    }
+
+    /**
+     * Creates a pool from a file of endpoints, one "host[:port] [weight]"
+     * per line. If the file is missing or empty, the pool falls back to the
+     * server the bot itself is connected to.
+     * @param parent the bot, used for logging and the fallback endpoint
+     * @param file the file path
+     */
+    public ServerPool(PircBotX parent, String file) {
+        this(parent, loadEndpoints(file));
+    }
+
+    /**
+     * Creates a pool from a list of endpoints.
+     * @param parent the bot, used for logging and the fallback endpoint
+     * @param servers the endpoints
+     */
+    public ServerPool(PircBotX parent, List<Endpoint> servers) {
+        bot = parent;
+        endpoints = new ArrayList<>(servers);
+        placement = new HashMap<>();
+        migrating = new HashSet<>();
+        monitor = new Monitor();
+    }
+
+    /**
+     * Connects a clone to the least loaded endpoint, trying the others in
+     * turn if it fails.
+     * @param clone the clone
+     * @throws Exception if no endpoint accepts the clone
+     */
+    public void connect(CloneBot clone) throws Exception {
+        connect(clone, null, 0);
+    }
+
+    /**
+     * Connects a clone, preferring the specified endpoint if it is known
+     * and up.
+     * @param clone the clone
+     * @param host the preferred host, or null for none
+     * @param port the preferred port
+     * @throws Exception if no endpoint accepts the clone
+     */
+    public void connect(CloneBot clone, String host, int port) throws Exception {
+        if (!clone.getListenerManager().listenerExists(monitor)) {
+            clone.getListenerManager().addListener(monitor);
+        }
+        Exception last = null;
+        HashSet<Endpoint> tried = new HashSet<>();
+        Endpoint e = host == null ? null : find(host, port);
+        if (e != null && isDown(e)) {
+            e = null;
+        }
+        while ((e = e != null ? e : pick(tried)) != null) {
+            tried.add(e);
+            try {
+                clone.connectClone(e.host, e.port);
+                synchronized (this) {
+                    placement.put(clone, e);
+                    e.connections++;
+                }
+                return;
+            } catch (Exception ex) {
+                last = ex;
+                markDown(e);
+                e = null;
+            }
+        }
+        throw last != null ? last : new IOException("No server endpoints available");
+    }
+
+    /**
+     * Stops tracking a clone so that its disconnection is not treated as a
+     * lost server, and cancels any pending migration of it. Call this
+     * before removing a clone on purpose.
+     * @param clone the clone
+     */
+    public synchronized void retire(CloneBot clone) {
+        migrating.remove(clone);
+        Endpoint e = placement.remove(clone);
+        if (e != null) {
+            e.connections--;
+        }
+    }
+
+    /**
+     * Sets a handler to run whenever a migration moves a clone to another
+     * endpoint, such as one that saves the fleet.
+     * @param handler the handler, or null for none
+     */
+    public void setFleetChangeHandler(Runnable handler) {
+        fleetChangeHandler = handler;
+    }
+
+    /**
+     * Returns the number of clones on each endpoint.
+     * @return a summary such as "irc.a.net:6667 (12), irc.b.net:6667 (10)"
+     */
+    public synchronized String getDistribution() {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint e : getEndpoints()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(e).append(" (").append(e.connections).append(isDown(e) ? ", down)" : ")");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Picks the endpoint with the lowest load for its weight, skipping
+     * endpoints that are down or already tried. Down endpoints are only
+     * used once nothing else is left.
+     */
+    private synchronized Endpoint pick(Set<Endpoint> tried) {
+        Endpoint best = null;
+        Endpoint bestDown = null;
+        for (Endpoint e : getEndpoints()) {
+            if (tried.contains(e)) {
+                continue;
+            }
+            if (isDown(e)) {
+                if (bestDown == null || load(e) < load(bestDown)) {
+                    bestDown = e;
+                }
+            } else if (best == null || load(e) < load(best)) {
+                best = e;
+            }
+        }
+        return best != null ? best : bestDown;
+    }
+
+    private static double load(Endpoint e) {
+        return (e.connections + 1) / (double) e.weight;
+    }
+
+    private synchronized Endpoint find(String host, int port) {
+        for (Endpoint e : getEndpoints()) {
+            if (e.host.equalsIgnoreCase(host) && e.port == port) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private synchronized boolean isDown(Endpoint e) {
+        return e.downUntil > System.currentTimeMillis();
+    }
+
+    private synchronized void markDown(Endpoint e) {
+        e.downUntil = System.currentTimeMillis() + DOWN_TIME;
+    }
+
+    /**
+     * Counts a clone dropped by an endpoint, marking the endpoint down when
+     * too many are dropped within the window. Must be called while holding
+     * the lock.
+     */
+    private void recordDrop(Endpoint e) {
+        long now = System.currentTimeMillis();
+        if (now - e.dropWindowStart > DROP_WINDOW) {
+            e.dropWindowStart = now;
+            e.drops = 0;
+        }
+        if (++e.drops >= DROP_LIMIT) {
+            e.downUntil = now + DOWN_TIME;
+        }
+    }
+
+    /**
+     * Returns the endpoints, falling back to the bot's own server.
+     */
+    private List<Endpoint> getEndpoints() {
+        if (endpoints.isEmpty() && bot.getServer() != null) {
+            endpoints.add(new Endpoint(bot.getServer(), bot.getPort(), 1));
+        }
+        return endpoints;
+    }
+
+    /**
+     * Reconnects a clone elsewhere in the background. Failed attempts are
+     * retried with a delay that doubles up to MAX_RETRY_DELAY, for as long
+     * as the clone has not been retired.
+     */
+    private void migrate(final CloneBot clone, final int round) {
+        long delay = round == 0 ? 0 : Math.min(RETRY_DELAY << Math.min(round - 1, 16), MAX_RETRY_DELAY);
+        getMigrator().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ServerPool.this) {
+                    if (!migrating.contains(clone)) {
+                        return;
+                    }
+                }
+                try {
+                    connect(clone);
+                } catch (Exception e) {
+                    bot.log("Clone " + clone.getNick() + " could not be placed: " + e);
+                    migrate(clone, round + 1);
+                    return;
+                }
+                boolean retired;
+                synchronized (ServerPool.this) {
+                    retired = !migrating.remove(clone);
+                }
+                if (retired) {
+                    // Retired while connecting, so it must not stay online
+                    retire(clone);
+                    clone.quitServer();
+                    return;
+                }
+                bot.log("Clone " + clone.getNick() + " migrated to " + clone.getServer() + ":" + clone.getPort() + ".");
+                Runnable handler = fleetChangeHandler;
+                if (handler != null) {
+                    handler.run();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized ScheduledExecutorService getMigrator() {
+        if (migrator == null) {
+            migrator = Executors.newScheduledThreadPool(4, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "ServerPool-Migrator");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return migrator;
+    }
+
+    private static ArrayList<Endpoint> loadEndpoints(String file) {
+        ArrayList<Endpoint> list = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+                if (parts[0].isEmpty() || parts[0].startsWith("#")) {
+                    continue;
+                }
+                try {
+                    String host = parts[0];
+                    int port = DEFAULT_PORT;
+                    int colon = host.lastIndexOf(':');
+                    if (colon > 0) {
+                        port = Integer.parseInt(host.substring(colon + 1));
+                        host = host.substring(0, colon);
+                    }
+                    int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+                    list.add(new Endpoint(host, port, weight));
+                } catch (NumberFormatException e) {
+                    // Skip malformed lines
+                }
+            }
+        } catch (IOException e) {
+            // No endpoints file, so the bot's own server is used
+        }
+        return list;
+    }
+}
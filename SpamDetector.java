@@ -0,0 +1,256 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import org.pircbotx.Channel;
+import org.pircbotx.PircBotX;
+
+/**
+ * Detects repeated messages, join floods and mass highlights as they stream
+ * in. Counts are kept in a pair of count-min sketches covering the current
+ * and previous window, so memory stays fixed regardless of traffic volume.
+ * @author Yizhe Shen
+ */
+public class SpamDetector {
+    public static final int NONE = 0;
+    public static final int REPEAT = 1;
+    public static final int JOIN_FLOOD = 2;
+    public static final int MASS_HIGHLIGHT = 3;
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 4096;
+    private static final long JOIN_SALT = 0x9e3779b97f4a7c15L;
+    /* Shorter messages, like "lol", repeat naturally */
+    private static final int MIN_REPEAT_LENGTH = 8;
+
+    private final PircBotX bot;
+    private final long windowMillis;
+    private int[][] current;
+    private int[][] previous;
+    private long windowStart;
+    /* Time of the last join flood reported for each channel */
+    private final HashMap<String, Long> joinFloods;
+    private int repeatThreshold;
+    private int joinThreshold;
+    private int highlightThreshold;
+
+    /**
+     * Creates a detector with default thresholds.
+     * @param parent the bot, used to look up mentioned nicks
+     * @param window the length of the sliding window in milliseconds
+     */
+    public SpamDetector(PircBotX parent, long window) {
+        bot = parent;
+        windowMillis = window;
+        current = new int[DEPTH][WIDTH];
+        previous = new int[DEPTH][WIDTH];
+        windowStart = System.currentTimeMillis();
+        joinFloods = new HashMap<>();
+        repeatThreshold = 5;
+        joinThreshold = 10;
+        highlightThreshold = 8;
+    }
+
+    /**
+     * Counts a channel message and checks it for repeats and mass
+     * highlights.
+     * @param channel the channel
+     * @param text the message
+     * @param time the time in milliseconds
+     * @return NONE, REPEAT or MASS_HIGHLIGHT
+     */
+    public synchronized int checkMessage(Channel channel, String text, long time) {
+        long key = hashNormalized(text) ^ hash(channel.getName());
+        if (add(key, time) >= repeatThreshold && countSignificant(text) >= MIN_REPEAT_LENGTH) {
+            return REPEAT;
+        }
+        // Only look up nicks when there are enough words to matter
+        if (countWords(text) >= highlightThreshold && countMentions(text, channel) >= highlightThreshold) {
+            return MASS_HIGHLIGHT;
+        }
+        return NONE;
+    }
+
+    /**
+     * Counts a join and checks the channel for a join flood. A flood is
+     * reported at most once per window for each channel, so only the join
+     * that crosses the threshold is punished rather than every join after
+     * it.
+     * @param channel the channel
+     * @param time the time in milliseconds
+     * @return NONE or JOIN_FLOOD
+     */
+    public synchronized int checkJoin(String channel, long time) {
+        if (add(hash(channel) ^ JOIN_SALT, time) < joinThreshold) {
+            return NONE;
+        }
+        String name = channel.toLowerCase();
+        Long last = joinFloods.get(name);
+        if (last != null && time - last < windowMillis) {
+            return NONE;
+        }
+        joinFloods.put(name, time);
+        return JOIN_FLOOD;
+    }
+
+    /**
+     * Sets the number of identical messages in a window that counts as spam.
+     * @param n the threshold
+     */
+    public synchronized void setRepeatThreshold(int n) {
+        repeatThreshold = n;
+    }
+
+    /**
+     * Sets the number of joins to a channel in a window that counts as a flood.
+     * @param n the threshold
+     */
+    public synchronized void setJoinThreshold(int n) {
+        joinThreshold = n;
+    }
+
+    /**
+     * Sets the number of nicks mentioned in one message that counts as spam.
+     * @param n the threshold
+     */
+    public synchronized void setHighlightThreshold(int n) {
+        highlightThreshold = n;
+    }
+
+    /**
+     * Returns the thresholds in a human readable form.
+     * @return the thresholds
+     */
+    public synchronized String getThresholds() {
+        return String.format("repeats=%d joins=%d highlights=%d per %ds window",
+                             repeatThreshold, joinThreshold, highlightThreshold, windowMillis / 1000);
+    }
+
+    /**
+     * Increments a key and returns its estimated count over the sliding
+     * window. The previous window's count is weighted by how much of it
+     * still overlaps.
+     */
+    private int add(long key, long time) {
+        rotate(time);
+        int h1 = (int) key;
+        int h2 = (int) (key >>> 32);
+        int cur = Integer.MAX_VALUE;
+        int prev = Integer.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int col = ((h1 + row * h2) & 0x7fffffff) % WIDTH;
+            cur = Math.min(cur, ++current[row][col]);
+            prev = Math.min(prev, previous[row][col]);
+        }
+        double overlap = 1.0 - (double) (time - windowStart) / windowMillis;
+        return cur + (int) (prev * Math.max(0, overlap));
+    }
+
+    /**
+     * Moves on to a new window once the current one has passed.
+     */
+    private void rotate(long time) {
+        if (time - windowStart < windowMillis) {
+            return;
+        }
+        int[][] tmp = previous;
+        previous = current;
+        current = tmp;
+        for (int[] row : current) {
+            Arrays.fill(row, 0);
+        }
+        if (time - windowStart >= 2 * windowMillis) {
+            // Nothing happened for a whole window
+            for (int[] row : previous) {
+                Arrays.fill(row, 0);
+            }
+        }
+        windowStart = time - (time - windowStart) % windowMillis;
+        Iterator<Long> it = joinFloods.values().iterator();
+        while (it.hasNext()) {
+            if (time - it.next() >= windowMillis) {
+                it.remove();
+            }
+        }
+    }
+
+    private static long hash(String str) {
+        long h = 0xcbf29ce484222325L;
+        for (int ctr = 0; ctr < str.length(); ctr++) {
+            h ^= Character.toLowerCase(str.charAt(ctr));
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Hashes a message ignoring case, spacing and punctuation so that
+     * trivially varied copies still collide.
+     */
+    private static long hashNormalized(String text) {
+        long h = 0xcbf29ce484222325L;
+        for (int ctr = 0; ctr < text.length(); ctr++) {
+            char c = text.charAt(ctr);
+            if (Character.isLetterOrDigit(c)) {
+                h ^= Character.toLowerCase(c);
+                h *= 0x100000001b3L;
+            }
+        }
+        return h;
+    }
+
+    private static int countSignificant(String text) {
+        int n = 0;
+        for (int ctr = 0; ctr < text.length(); ctr++) {
+            if (Character.isLetterOrDigit(text.charAt(ctr))) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private static int countWords(String text) {
+        int words = 0;
+        boolean inWord = false;
+        for (int ctr = 0; ctr < text.length(); ctr++) {
+            boolean space = text.charAt(ctr) == ' ';
+            if (!space && !inWord) {
+                words++;
+            }
+            inWord = !space;
+        }
+        return words;
+    }
+
+    private int countMentions(String text, Channel channel) {
+        HashSet<String> mentioned = new HashSet<>();
+        StringTokenizer st = new StringTokenizer(text, " ,:;");
+        while (st.hasMoreTokens() && mentioned.size() < highlightThreshold) {
+            String token = st.nextToken();
+            // Look each word up rather than copying a large channel's user list
+            if (!mentioned.contains(token.toLowerCase()) && bot.userExists(token)
+                    && bot.getUser(token).getChannels().contains(channel)) {
+                mentioned.add(token.toLowerCase());
+            }
+        }
+        return mentioned.size();
+    }
+}
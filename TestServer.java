@@ -0,0 +1,776 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal in-process IRC server for exercising bots and clones on a local
+ * socket. Supports registration, JOIN, PART, PRIVMSG, NOTICE, MODE, KICK,
+ * NAMES, WHO and QUIT, along with an ircd-style flood penalty and a
+ * replayed netsplit.
+ * @author Yizhe Shen
+ */
+public class TestServer implements Runnable {
+    private final String serverName;
+    private final ServerSocket serverSocket;
+    private final Map<String, Client> clients;
+    private final Map<String, ServerChannel> channels;
+    private final AtomicLong connectionCount;
+    private final AtomicLong lineCount;
+    private long penaltyMillis;
+    private long penaltyWindow;
+    private boolean floodDisconnect;
+    private volatile boolean running;
+
+    /* A channel and its members */
+    private static class ServerChannel {
+        String name;
+        LinkedHashMap<Client, String> members = new LinkedHashMap<>();
+        LinkedHashSet<String> bans = new LinkedHashSet<>();
+        LinkedHashSet<String> quiets = new LinkedHashSet<>();
+
+        ServerChannel(String channelName) {
+            name = channelName;
+        }
+    }
+
+    /* A connected client and its reader thread */
+    private class Client extends Thread {
+        Socket socket;
+        BufferedWriter out;
+        String nick;
+        String login;
+        String realName = "";
+        String host = "localhost";
+        boolean registered;
+        long penaltyClock;
+
+        Client(Socket clientSocket) {
+            super("TestServer-Client");
+            setDaemon(true);
+            socket = clientSocket;
+        }
+
+        String getMask() {
+            return nick + "!" + login + "@" + host;
+        }
+
+        /**
+         * Writes a line to the client. Errors are ignored since the reader
+         * thread will notice the dead socket and clean up.
+         * @param line the line without CRLF
+         */
+        synchronized void send(String line) {
+            try {
+                out.write(line);
+                out.write("\r\n");
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Writes several lines to the client with a single flush, as a
+         * server relaying a burst would.
+         * @param lines the lines without CRLF
+         */
+        synchronized void sendAll(List<String> lines) {
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write("\r\n");
+                }
+                out.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with a dead socket
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                String line;
+                while (running && (line = in.readLine()) != null) {
+                    lineCount.incrementAndGet();
+                    if (!applyPenalty(this)) {
+                        break;
+                    }
+                    handleLine(this, line);
+                }
+            } catch (IOException e) {
+                // Connection dropped
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                removeClient(this, "Connection closed");
+                close();
+            }
+        }
+    }
+
+    /**
+     * Creates a server bound to the loopback interface.
+     * @param port the port to listen on, or 0 for an ephemeral port
+     * @throws IOException if the port cannot be bound
+     */
+    public TestServer(int port) throws IOException {
+        serverName = "irc.test.local";
+        serverSocket = new ServerSocket(port, 1024, InetAddress.getLoopbackAddress());
+        clients = new HashMap<>();
+        channels = new HashMap<>();
+        connectionCount = new AtomicLong();
+        lineCount = new AtomicLong();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        running = true;
+        Thread acceptThread = new Thread(this, "TestServer-Accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Stops accepting connections and drops every client.
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+        ArrayList<Client> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(clients.values());
+        }
+        for (Client c : snapshot) {
+            c.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Socket s = serverSocket.accept();
+                s.setTcpNoDelay(true);
+                connectionCount.incrementAndGet();
+                new Client(s).start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("TestServer: " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Configures the flood penalty. Each line received advances a client's
+     * penalty clock by penaltyMillis. Once the clock runs more than
+     * window milliseconds ahead, the client is either throttled or
+     * disconnected for excess flood.
+     * @param penalty milliseconds of penalty per line, 0 to disable
+     * @param window allowed lead of the penalty clock in milliseconds
+     * @param disconnect true to drop flooding clients instead of throttling
+     */
+    public synchronized void setFloodPenalty(long penalty, long window, boolean disconnect) {
+        penaltyMillis = penalty;
+        penaltyWindow = window;
+        floodDisconnect = disconnect;
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     * @return the local port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of connections accepted since start.
+     * @return the connection count
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Returns the number of lines received from all clients.
+     * @return the line count
+     */
+    public long getLineCount() {
+        return lineCount.get();
+    }
+
+    /**
+     * Returns the number of members in a channel.
+     * @param channel the channel name
+     * @return the member count, or 0 if the channel does not exist
+     */
+    public synchronized int getMemberCount(String channel) {
+        ServerChannel chan = channels.get(channel.toLowerCase());
+        return chan == null ? 0 : chan.members.size();
+    }
+
+    /**
+     * Replays a netsplit and rejoin in the specified channels. Users from a
+     * remote server appear, quit with a split reason and return after a
+     * delay. The remote users exist only in the lines sent to members.
+     * @param channelNames the channels
+     * @param users the number of remote users per channel
+     * @param rejoinDelay milliseconds before the users return
+     * @return the number of lines sent to each member
+     * @throws InterruptedException if interrupted while waiting to rejoin
+     */
+    public int replayNetsplit(List<String> channelNames, int users, long rejoinDelay) throws InterruptedException {
+        HashMap<String, List<Client>> members = new HashMap<>();
+        synchronized (this) {
+            for (String name : channelNames) {
+                ServerChannel chan = channels.get(name.toLowerCase());
+                if (chan != null) {
+                    members.put(name, new ArrayList<>(chan.members.keySet()));
+                }
+            }
+        }
+        HashMap<String, List<String>> rejoins = new HashMap<>();
+        String reason = serverName + " leaf.test.local";
+        int ctr = 0;
+        for (String name : channelNames) {
+            ArrayList<String> joins = new ArrayList<>();
+            ArrayList<String> quits = new ArrayList<>();
+            for (int idx = 0; idx < users; idx++, ctr++) {
+                String mask = "split" + ctr + "!split@leaf.test.local";
+                joins.add(":" + mask + " JOIN :" + name);
+                quits.add(":" + mask + " QUIT :" + reason);
+            }
+            ArrayList<String> burst = new ArrayList<>(joins);
+            burst.addAll(quits);
+            relay(members.get(name), burst);
+            // Hold the rejoin lines until the split heals
+            rejoins.put(name, joins);
+        }
+        Thread.sleep(rejoinDelay);
+        for (String name : channelNames) {
+            relay(members.get(name), rejoins.get(name));
+        }
+        return users * 3;
+    }
+
+    private void relay(List<Client> recipients, List<String> lines) {
+        if (recipients == null) {
+            return;
+        }
+        for (Client r : recipients) {
+            r.sendAll(lines);
+        }
+    }
+
+    /**
+     * Applies the flood penalty to a client for one received line.
+     * @param c the client
+     * @return false if the client was disconnected for flooding
+     * @throws InterruptedException if interrupted while throttling
+     */
+    private boolean applyPenalty(Client c) throws InterruptedException {
+        long penalty, window;
+        boolean disconnect;
+        synchronized (this) {
+            penalty = penaltyMillis;
+            window = penaltyWindow;
+            disconnect = floodDisconnect;
+        }
+        if (penalty <= 0) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        if (c.penaltyClock < now) {
+            c.penaltyClock = now;
+        }
+        c.penaltyClock += penalty;
+        long lead = c.penaltyClock - now - window;
+        if (lead > 0) {
+            if (disconnect) {
+                c.send("ERROR :Closing Link: " + c.host + " (Excess Flood)");
+                return false;
+            }
+            Thread.sleep(lead);
+        }
+        return true;
+    }
+
+    /**
+     * Splits a raw line into command and parameters, dropping any prefix.
+     * @param line the raw line
+     * @return the command followed by its parameters
+     */
+    private static List<String> parseLine(String line) {
+        ArrayList<String> parts = new ArrayList<>();
+        int pos = 0;
+        if (line.startsWith(":")) {
+            pos = line.indexOf(' ');
+            if (pos < 0) {
+                return parts;
+            }
+        }
+        while (pos < line.length()) {
+            while (pos < line.length() && line.charAt(pos) == ' ') {
+                pos++;
+            }
+            if (pos >= line.length()) {
+                break;
+            }
+            if (line.charAt(pos) == ':' && !parts.isEmpty()) {
+                parts.add(line.substring(pos + 1));
+                break;
+            }
+            int end = line.indexOf(' ', pos);
+            if (end < 0) {
+                end = line.length();
+            }
+            parts.add(line.substring(pos, end));
+            pos = end;
+        }
+        return parts;
+    }
+
+    /**
+     * Handles one line from a client.
+     * @param c the client
+     * @param line the raw line
+     */
+    private void handleLine(Client c, String line) {
+        List<String> parts = parseLine(line);
+        if (parts.isEmpty()) {
+            return;
+        }
+        String command = parts.get(0).toUpperCase();
+        List<String> params = parts.subList(1, parts.size());
+
+        if (command.equals("NICK")) {
+            nick(c, params);
+        } else if (command.equals("USER")) {
+            user(c, params);
+        } else if (command.equals("PING")) {
+            c.send(":" + serverName + " PONG " + serverName + " :" + (params.isEmpty() ? "" : params.get(0)));
+        } else if (command.equals("PONG")) {
+            // Nothing to do
+        } else if (command.equals("QUIT")) {
+            removeClient(c, params.isEmpty() ? "Quit" : params.get(0));
+            c.send("ERROR :Closing Link: " + c.host);
+            c.close();
+        } else if (!c.registered) {
+            numeric(c, "451", ":You have not registered");
+        } else if (command.equals("JOIN")) {
+            join(c, params);
+        } else if (command.equals("PART")) {
+            part(c, params);
+        } else if (command.equals("PRIVMSG") || command.equals("NOTICE")) {
+            message(c, command, params);
+        } else if (command.equals("MODE")) {
+            mode(c, params);
+        } else if (command.equals("KICK")) {
+            kick(c, params);
+        } else if (command.equals("NAMES")) {
+            if (!params.isEmpty()) {
+                names(c, params.get(0));
+            }
+        } else if (command.equals("WHO")) {
+            if (!params.isEmpty()) {
+                who(c, params.get(0));
+            }
+        } else if (command.equals("USERHOST") || command.equals("ISON")) {
+            // Not needed by the bots
+        } else {
+            numeric(c, "421", command + " :Unknown command");
+        }
+    }
+
+    private void numeric(Client c, String code, String text) {
+        c.send(":" + serverName + " " + code + " " + (c.nick == null ? "*" : c.nick) + " " + text);
+    }
+
+    private void nick(Client c, List<String> params) {
+        if (params.isEmpty()) {
+            numeric(c, "431", ":No nickname given");
+            return;
+        }
+        String newNick = params.get(0);
+        HashSet<Client> recipients = new HashSet<>();
+        String oldMask;
+        synchronized (this) {
+            Client other = clients.get(newNick.toLowerCase());
+            if (other != null && other != c) {
+                numeric(c, "433", newNick + " :Nickname is already in use");
+                return;
+            }
+            if (c.nick != null) {
+                clients.remove(c.nick.toLowerCase());
+            }
+            oldMask = c.nick == null ? null : c.getMask();
+            c.nick = newNick;
+            clients.put(newNick.toLowerCase(), c);
+            if (c.registered) {
+                recipients.add(c);
+                for (ServerChannel chan : channels.values()) {
+                    if (chan.members.containsKey(c)) {
+                        recipients.addAll(chan.members.keySet());
+                    }
+                }
+            }
+        }
+        if (c.registered) {
+            for (Client r : recipients) {
+                r.send(":" + oldMask + " NICK :" + newNick);
+            }
+        } else {
+            completeRegistration(c);
+        }
+    }
+
+    private void user(Client c, List<String> params) {
+        if (params.size() < 4) {
+            numeric(c, "461", "USER :Not enough parameters");
+            return;
+        }
+        c.login = params.get(0);
+        c.realName = params.get(3);
+        completeRegistration(c);
+    }
+
+    private void completeRegistration(Client c) {
+        if (c.registered || c.nick == null || c.login == null) {
+            return;
+        }
+        c.registered = true;
+        numeric(c, "001", ":Welcome to the test network " + c.getMask());
+        numeric(c, "002", ":Your host is " + serverName);
+        numeric(c, "003", ":This server was created just now");
+        numeric(c, "004", serverName + " ircutil-test io bqovntim");
+        numeric(c, "005", "CHANMODES=bq,k,l,imnpst PREFIX=(ov)@+ MODES=4 CHANTYPES=# :are supported by this server");
+        numeric(c, "422", ":MOTD File is missing");
+    }
+
+    private void join(Client c, List<String> params) {
+        if (params.isEmpty()) {
+            numeric(c, "461", "JOIN :Not enough parameters");
+            return;
+        }
+        for (String name : params.get(0).split(",")) {
+            if (!name.startsWith("#")) {
+                numeric(c, "403", name + " :No such channel");
+                continue;
+            }
+            ArrayList<Client> recipients;
+            synchronized (this) {
+                ServerChannel chan = channels.get(name.toLowerCase());
+                if (chan == null) {
+                    chan = new ServerChannel(name);
+                    channels.put(name.toLowerCase(), chan);
+                }
+                if (chan.members.containsKey(c)) {
+                    continue;
+                }
+                chan.members.put(c, chan.members.isEmpty() ? "@" : "");
+                recipients = new ArrayList<>(chan.members.keySet());
+            }
+            for (Client r : recipients) {
+                r.send(":" + c.getMask() + " JOIN :" + name);
+            }
+            names(c, name);
+        }
+    }
+
+    private void part(Client c, List<String> params) {
+        if (params.isEmpty()) {
+            numeric(c, "461", "PART :Not enough parameters");
+            return;
+        }
+        String reason = params.size() > 1 ? " :" + params.get(1) : "";
+        for (String name : params.get(0).split(",")) {
+            ArrayList<Client> recipients;
+            synchronized (this) {
+                ServerChannel chan = channels.get(name.toLowerCase());
+                if (chan == null || !chan.members.containsKey(c)) {
+                    numeric(c, "442", name + " :You're not on that channel");
+                    continue;
+                }
+                recipients = new ArrayList<>(chan.members.keySet());
+                leaveChannel(chan, c);
+            }
+            for (Client r : recipients) {
+                r.send(":" + c.getMask() + " PART " + name + reason);
+            }
+        }
+    }
+
+    private void message(Client c, String command, List<String> params) {
+        if (params.size() < 2) {
+            numeric(c, "412", ":No text to send");
+            return;
+        }
+        String target = params.get(0);
+        String line = ":" + c.getMask() + " " + command + " " + target + " :" + params.get(1);
+        ArrayList<Client> recipients = new ArrayList<>();
+        synchronized (this) {
+            if (target.startsWith("#")) {
+                ServerChannel chan = channels.get(target.toLowerCase());
+                if (chan != null) {
+                    for (Client r : chan.members.keySet()) {
+                        if (r != c) {
+                            recipients.add(r);
+                        }
+                    }
+                }
+            } else {
+                Client r = clients.get(target.toLowerCase());
+                if (r != null) {
+                    recipients.add(r);
+                }
+            }
+        }
+        if (recipients.isEmpty() && command.equals("PRIVMSG") && !target.startsWith("#")) {
+            numeric(c, "401", target + " :No such nick/channel");
+        }
+        for (Client r : recipients) {
+            r.send(line);
+        }
+    }
+
+    private void mode(Client c, List<String> params) {
+        if (params.isEmpty()) {
+            numeric(c, "461", "MODE :Not enough parameters");
+            return;
+        }
+        String target = params.get(0);
+        if (!target.startsWith("#")) {
+            if (params.size() > 1) {
+                c.send(":" + c.nick + " MODE " + c.nick + " :" + params.get(1));
+            } else {
+                numeric(c, "221", "+i");
+            }
+            return;
+        }
+        ArrayList<Client> recipients;
+        StringBuilder applied = new StringBuilder();
+        synchronized (this) {
+            ServerChannel chan = channels.get(target.toLowerCase());
+            if (chan == null) {
+                numeric(c, "403", target + " :No such channel");
+                return;
+            }
+            if (params.size() == 1) {
+                numeric(c, "324", chan.name + " +nt");
+                return;
+            }
+            String prefix = chan.members.get(c);
+            if (prefix == null || !prefix.contains("@")) {
+                numeric(c, "482", chan.name + " :You're not channel operator");
+                return;
+            }
+            String modes = params.get(1);
+            int argIndex = 2;
+            boolean adding = true;
+            StringBuilder args = new StringBuilder();
+            for (int ctr = 0; ctr < modes.length(); ctr++) {
+                char m = modes.charAt(ctr);
+                if (m == '+' || m == '-') {
+                    adding = m == '+';
+                    applied.append(m);
+                    continue;
+                }
+                String arg = null;
+                if ("bqov".indexOf(m) >= 0) {
+                    if (argIndex >= params.size()) {
+                        continue;
+                    }
+                    arg = params.get(argIndex++);
+                }
+                if (m == 'b') {
+                    if (adding) chan.bans.add(arg); else chan.bans.remove(arg);
+                } else if (m == 'q') {
+                    if (adding) chan.quiets.add(arg); else chan.quiets.remove(arg);
+                } else if (m == 'o' || m == 'v') {
+                    Client member = clients.get(arg.toLowerCase());
+                    String p = member == null ? null : chan.members.get(member);
+                    if (p == null) {
+                        continue;
+                    }
+                    String symbol = m == 'o' ? "@" : "+";
+                    p = p.replace(symbol, "");
+                    chan.members.put(member, adding ? (m == 'o' ? symbol + p : p + symbol) : p);
+                }
+                applied.append(m);
+                if (arg != null) {
+                    args.append(' ').append(arg);
+                }
+            }
+            applied.append(args);
+            recipients = new ArrayList<>(chan.members.keySet());
+        }
+        for (Client r : recipients) {
+            r.send(":" + c.getMask() + " MODE " + target + " " + applied);
+        }
+    }
+
+    private void kick(Client c, List<String> params) {
+        if (params.size() < 2) {
+            numeric(c, "461", "KICK :Not enough parameters");
+            return;
+        }
+        String target = params.get(0);
+        String reason = params.size() > 2 ? params.get(2) : c.nick;
+        for (String nick : params.get(1).split(",")) {
+            ArrayList<Client> recipients;
+            synchronized (this) {
+                ServerChannel chan = channels.get(target.toLowerCase());
+                if (chan == null) {
+                    numeric(c, "403", target + " :No such channel");
+                    return;
+                }
+                String prefix = chan.members.get(c);
+                if (prefix == null || !prefix.contains("@")) {
+                    numeric(c, "482", chan.name + " :You're not channel operator");
+                    return;
+                }
+                Client victim = clients.get(nick.toLowerCase());
+                if (victim == null || !chan.members.containsKey(victim)) {
+                    numeric(c, "441", nick + " " + chan.name + " :They aren't on that channel");
+                    continue;
+                }
+                recipients = new ArrayList<>(chan.members.keySet());
+                leaveChannel(chan, victim);
+            }
+            for (Client r : recipients) {
+                r.send(":" + c.getMask() + " KICK " + target + " " + nick + " :" + reason);
+            }
+        }
+    }
+
+    private void names(Client c, String name) {
+        ArrayList<String> entries = new ArrayList<>();
+        String chanName = name;
+        synchronized (this) {
+            ServerChannel chan = channels.get(name.toLowerCase());
+            if (chan != null) {
+                chanName = chan.name;
+                for (Map.Entry<Client, String> e : chan.members.entrySet()) {
+                    entries.add(e.getValue() + e.getKey().nick);
+                }
+            }
+        }
+        // Keep each reply comfortably below the 512 byte line limit
+        StringBuilder sb = new StringBuilder();
+        for (String entry : entries) {
+            if (sb.length() + entry.length() > 400) {
+                numeric(c, "353", "= " + chanName + " :" + sb.toString().trim());
+                sb.setLength(0);
+            }
+            sb.append(entry).append(' ');
+        }
+        if (sb.length() > 0) {
+            numeric(c, "353", "= " + chanName + " :" + sb.toString().trim());
+        }
+        numeric(c, "366", chanName + " :End of /NAMES list.");
+    }
+
+    private void who(Client c, String mask) {
+        ArrayList<String> replies = new ArrayList<>();
+        synchronized (this) {
+            ServerChannel chan = channels.get(mask.toLowerCase());
+            if (chan != null) {
+                for (Map.Entry<Client, String> e : chan.members.entrySet()) {
+                    Client m = e.getKey();
+                    replies.add(chan.name + " " + m.login + " " + m.host + " " + serverName + " "
+                                + m.nick + " H" + e.getValue() + " :0 " + m.realName);
+                }
+            } else {
+                Client m = clients.get(mask.toLowerCase());
+                if (m != null) {
+                    replies.add("* " + m.login + " " + m.host + " " + serverName + " " + m.nick + " H :0 " + m.realName);
+                }
+            }
+        }
+        for (String reply : replies) {
+            numeric(c, "352", reply);
+        }
+        numeric(c, "315", mask + " :End of /WHO list.");
+    }
+
+    /**
+     * Removes a member from a channel, dropping the channel once empty.
+     * Must be called while holding the server lock.
+     */
+    private void leaveChannel(ServerChannel chan, Client c) {
+        chan.members.remove(c);
+        if (chan.members.isEmpty()) {
+            channels.remove(chan.name.toLowerCase());
+        }
+    }
+
+    /**
+     * Removes a client from the server, informing anyone sharing a channel.
+     * @param c the client
+     * @param reason the quit message
+     */
+    private void removeClient(Client c, String reason) {
+        HashSet<Client> recipients = new HashSet<>();
+        synchronized (this) {
+            if (c.nick == null || clients.get(c.nick.toLowerCase()) != c) {
+                return;
+            }
+            clients.remove(c.nick.toLowerCase());
+            for (ServerChannel chan : new ArrayList<>(channels.values())) {
+                if (chan.members.containsKey(c)) {
+                    leaveChannel(chan, c);
+                    recipients.addAll(chan.members.keySet());
+                }
+            }
+        }
+        for (Client r : recipients) {
+            r.send(":" + c.getMask() + " QUIT :" + reason);
+        }
+    }
+}
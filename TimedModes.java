@@ -0,0 +1,353 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.pircbotx.PircBotX;
+
+/**
+ * Keeps track of channel modes that expire, such as timed bans and quiets.
+ * Expiries are held in a TimingWheel and persisted to a file so that they
+ * survive restarts. The wheel is only turned when its next timer comes
+ * due, rather than on a fixed tick. Modes that come due together are
+ * removed in batched MODE lines, and those that cannot be removed yet
+ * because the bot is not opped wait until retry is called for their
+ * channel.
+ * @author Yizhe Shen
+ */
+public class TimedModes {
+    /* Most servers accept at least this many modes per MODE line */
+    public static final int MODES_PER_LINE = 4;
+    private static final long TICK = 1000;
+
+    private final PircBotX bot;
+    private final String file;
+    private final TimingWheel<Entry> wheel;
+    private final HashMap<String, TimingWheel.Timeout<Entry>> pending;
+    private final ArrayList<Entry> due;
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> tickTask;
+    private long tickTime;
+    private boolean savePending;
+
+    /* A mode to be removed from a channel at a certain time */
+    private static class Entry {
+        String channel;
+        char mode;
+        String mask;
+        long expiry;
+
+        Entry(String entryChannel, char entryMode, String entryMask, long entryExpiry) {
+            channel = entryChannel;
+            mode = entryMode;
+            mask = entryMask;
+            expiry = entryExpiry;
+        }
+
+        String getKey() {
+            return getKey(channel, mode, mask);
+        }
+
+        static String getKey(String channel, char mode, String mask) {
+            return channel.toLowerCase() + " " + mode + " " + mask.toLowerCase();
+        }
+    }
+
+    /**
+     * Creates the tracker and restores any expiries saved in the file.
+     * @param parent the bot that sets and removes the modes
+     * @param saveFile the file path for persisted expiries
+     */
+    public TimedModes(PircBotX parent, String saveFile) {
+        bot = parent;
+        file = saveFile;
+        wheel = new TimingWheel<>(TICK, System.currentTimeMillis());
+        pending = new HashMap<>();
+        due = new ArrayList<>();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TimedModes");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        load();
+    }
+
+    /**
+     * Schedules the removal of a channel mode. Replaces any existing expiry
+     * for the same channel, mode and mask.
+     * @param channel the channel
+     * @param mode the list mode, such as 'b' or 'q'
+     * @param mask the mode target
+     * @param duration milliseconds until removal
+     */
+    public synchronized void add(String channel, char mode, String mask, long duration) {
+        schedule(new Entry(channel, mode, mask, System.currentTimeMillis() + duration));
+        scheduleSave();
+    }
+
+    /**
+     * Cancels a pending removal, such as when a ban is lifted by hand.
+     * @param channel the channel
+     * @param mode the list mode
+     * @param mask the mode target
+     * @return true if a removal was pending
+     */
+    public synchronized boolean cancel(String channel, char mode, String mask) {
+        String key = Entry.getKey(channel, mode, mask);
+        TimingWheel.Timeout<Entry> t = pending.remove(key);
+        if (t != null) {
+            wheel.cancel(t);
+            scheduleSave();
+            return true;
+        }
+        // It may already be due and waiting for the bot to be opped
+        Iterator<Entry> it = due.iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().equals(key)) {
+                it.remove();
+                scheduleSave();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the removals held for a channel if the bot is now opped there.
+     * Call this when the bot joins a channel or is opped in one.
+     * @param channel the channel
+     */
+    public void retry(String channel) {
+        ArrayList<Entry> ready = new ArrayList<>();
+        synchronized (this) {
+            if (due.isEmpty() || !bot.isConnected() || !isBotOp(channel)) {
+                return;
+            }
+            Iterator<Entry> it = due.iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (e.channel.equalsIgnoreCase(channel)) {
+                    ready.add(e);
+                    it.remove();
+                }
+            }
+            if (ready.isEmpty()) {
+                return;
+            }
+            scheduleSave();
+        }
+        send(ready);
+    }
+
+    /**
+     * Returns the number of pending removals.
+     * @return the pending count
+     */
+    public synchronized int size() {
+        return pending.size() + due.size();
+    }
+
+    /**
+     * Sends a list mode change for many targets, packing up to
+     * MODES_PER_LINE targets into each MODE line.
+     * @param bot the bot to send from
+     * @param channel the channel
+     * @param change the sign and mode, such as "-b"
+     * @param targets the mode targets
+     */
+    public static void sendModes(PircBotX bot, String channel, String change, List<String> targets) {
+        char sign = change.charAt(0);
+        char mode = change.charAt(1);
+        for (int start = 0; start < targets.size(); start += MODES_PER_LINE) {
+            int end = Math.min(start + MODES_PER_LINE, targets.size());
+            StringBuilder modes = new StringBuilder().append(sign);
+            StringBuilder args = new StringBuilder();
+            for (int ctr = start; ctr < end; ctr++) {
+                modes.append(mode);
+                args.append(' ').append(targets.get(ctr));
+            }
+            bot.sendRawLine("MODE " + channel + " " + modes + args);
+        }
+    }
+
+    /**
+     * Adds an entry to the wheel, making sure a tick runs by its expiry.
+     * Must be called while holding the lock.
+     */
+    private void schedule(Entry e) {
+        TimingWheel.Timeout<Entry> old = pending.remove(e.getKey());
+        if (old != null) {
+            wheel.cancel(old);
+        }
+        pending.put(e.getKey(), wheel.schedule(e, e.expiry));
+        arm(e.expiry);
+    }
+
+    /**
+     * Schedules a one-shot tick for the specified time, unless one is
+     * already due by then. Must be called while holding the lock.
+     */
+    private void arm(long time) {
+        if (tickTask != null) {
+            if (tickTime <= time) {
+                return;
+            }
+            tickTask.cancel(false);
+        }
+        tickTime = time;
+        tickTask = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, Math.max(0, time - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Saves the file shortly, so that a burst of changes is written once.
+     * Must be called while holding the lock.
+     */
+    private void scheduleSave() {
+        if (!savePending) {
+            savePending = true;
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, TICK, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Turns the wheel, sends the removals that came due and arms the next
+     * tick for the wheel's earliest deadline. Removals in channels where
+     * the bot is not opped are held for retry, since the server would
+     * refuse them.
+     */
+    private void tick() {
+        ArrayList<Entry> expired = new ArrayList<>();
+        ArrayList<Entry> ready = new ArrayList<>();
+        synchronized (this) {
+            tickTask = null;
+            wheel.advance(System.currentTimeMillis(), expired);
+            for (Entry e : expired) {
+                pending.remove(e.getKey());
+                if (bot.isConnected() && isBotOp(e.channel)) {
+                    ready.add(e);
+                } else {
+                    due.add(e);
+                }
+            }
+            long next = wheel.nextDeadline();
+            if (next >= 0) {
+                arm(next);
+            }
+        }
+        send(ready);
+        if (!expired.isEmpty()) {
+            save();
+        }
+    }
+
+    /**
+     * Sends removals, grouped by channel and mode so that each group goes
+     * out in as few lines as possible.
+     */
+    private void send(List<Entry> entries) {
+        LinkedHashMap<String, ArrayList<String>> groups = new LinkedHashMap<>();
+        for (Entry e : entries) {
+            String key = e.channel + " -" + e.mode;
+            ArrayList<String> targets = groups.get(key);
+            if (targets == null) {
+                targets = new ArrayList<>();
+                groups.put(key, targets);
+            }
+            targets.add(e.mask);
+        }
+        for (Map.Entry<String, ArrayList<String>> group : groups.entrySet()) {
+            String[] key = group.getKey().split(" ");
+            sendModes(bot, key[0], key[1], group.getValue());
+        }
+    }
+
+    private boolean isBotOp(String channel) {
+        return bot.channelExists(channel) && bot.getChannel(channel).isOp(bot.getUserBot());
+    }
+
+    /**
+     * Writes every pending removal to the file. Only called on the
+     * scheduler thread, so writes never overlap.
+     */
+    private void save() {
+        ArrayList<Entry> entries = new ArrayList<>();
+        synchronized (this) {
+            savePending = false;
+            for (TimingWheel.Timeout<Entry> t : pending.values()) {
+                entries.add(t.getItem());
+            }
+            entries.addAll(due);
+        }
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            for (Entry e : entries) {
+                out.println(e.expiry + " " + e.channel + " " + e.mode + " " + e.mask);
+            }
+        } catch (IOException e) {
+            bot.log("Error writing to " + file + "!");
+        }
+    }
+
+    /**
+     * Restores pending removals from the file. Any that expired while the
+     * bot was down come due on the first tick and are sent once it is back
+     * and opped in their channel.
+     */
+    private synchronized void load() {
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(" ");
+                if (parts.length == 4 && parts[2].length() == 1) {
+                    try {
+                        schedule(new Entry(parts[1], parts[2].charAt(0), parts[3], Long.parseLong(parts[0])));
+                    } catch (NumberFormatException e) {
+                        bot.log("Skipping bad line in " + file + ": " + line);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // No saved expiries
+        }
+    }
+}
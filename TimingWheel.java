@@ -0,0 +1,215 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.List;
+
+/**
+ * A hashed hierarchical timing wheel. Timers are kept in doubly linked
+ * slots so that scheduling and cancelling are both O(1). Each level has 64
+ * slots; timers on higher levels cascade down as the wheel turns. The wheel
+ * is not thread-safe and does not run on its own; the owner calls advance().
+ * @author Yizhe Shen
+ * @param <T> the type of item held by each timer
+ */
+public class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+    private static final long MAX_TICKS = 1L << (BITS * LEVELS);
+
+    private final long tickMillis;
+    private final Timeout<T>[][] wheel;
+    private long currentTick;
+    private int size;
+
+    /**
+     * A scheduled timer. Also serves as the handle for cancelling it.
+     * @param <T> the type of item held
+     */
+    public static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private Timeout<T> prev, next;
+        private int level, slot;
+        private boolean scheduled;
+
+        private Timeout(T timerItem, long deadlineTick) {
+            item = timerItem;
+            deadline = deadlineTick;
+        }
+
+        public T getItem() {
+            return item;
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    /**
+     * Creates a timing wheel.
+     * @param tick the length of one tick in milliseconds
+     * @param nowMillis the current time in milliseconds
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tick, long nowMillis) {
+        tickMillis = tick;
+        wheel = new Timeout[LEVELS][SLOTS];
+        currentTick = nowMillis / tickMillis;
+    }
+
+    /**
+     * Schedules an item to expire at the specified time. Times in the past
+     * expire on the next tick.
+     * @param item the item
+     * @param deadlineMillis the expiry time in milliseconds
+     * @return the handle for the timer
+     */
+    public Timeout<T> schedule(T item, long deadlineMillis) {
+        Timeout<T> t = new Timeout<>(item, Math.max(currentTick + 1, deadlineMillis / tickMillis));
+        place(t);
+        size++;
+        return t;
+    }
+
+    /**
+     * Cancels a scheduled timer.
+     * @param t the handle
+     * @return true if the timer was still scheduled
+     */
+    public boolean cancel(Timeout<T> t) {
+        if (!t.scheduled) {
+            return false;
+        }
+        unlink(t);
+        size--;
+        return true;
+    }
+
+    /**
+     * Turns the wheel up to the specified time.
+     * @param nowMillis the current time in milliseconds
+     * @param expired receives the items of every timer that came due
+     */
+    public void advance(long nowMillis, List<T> expired) {
+        long target = nowMillis / tickMillis;
+        while (currentTick < target) {
+            currentTick++;
+            // Cascade higher levels whenever the level below wraps around
+            for (int level = 1; level < LEVELS; level++) {
+                if ((currentTick & ((1L << (BITS * level)) - 1)) != 0) {
+                    break;
+                }
+                cascade(level, (int) ((currentTick >>> (BITS * level)) & MASK));
+            }
+            Timeout<T> t = wheel[0][(int) (currentTick & MASK)];
+            while (t != null) {
+                Timeout<T> next = t.next;
+                unlink(t);
+                size--;
+                expired.add(t.item);
+                t = next;
+            }
+            if (size == 0) {
+                // Nothing left to expire, so skip straight to the target
+                currentTick = target;
+            }
+        }
+    }
+
+    /**
+     * Returns when the earliest timer comes due. Every timer is visited, so
+     * this is meant for rescheduling after a tick rather than for each
+     * insert.
+     * @return the deadline in milliseconds, or -1 if nothing is scheduled
+     */
+    public long nextDeadline() {
+        if (size == 0) {
+            return -1;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (Timeout<T>[] level : wheel) {
+            for (Timeout<T> t : level) {
+                for (; t != null; t = t.next) {
+                    earliest = Math.min(earliest, t.deadline);
+                }
+            }
+        }
+        return earliest * tickMillis;
+    }
+
+    /**
+     * Returns the number of scheduled timers.
+     * @return the timer count
+     */
+    public int size() {
+        return size;
+    }
+
+    private void cascade(int level, int slot) {
+        Timeout<T> t = wheel[level][slot];
+        wheel[level][slot] = null;
+        while (t != null) {
+            Timeout<T> next = t.next;
+            t.scheduled = false;
+            place(t);
+            t = next;
+        }
+    }
+
+    private void place(Timeout<T> t) {
+        long deadline = Math.max(t.deadline, currentTick);
+        long delta = deadline - currentTick;
+        if (delta >= MAX_TICKS) {
+            // Park far-off timers at the top level; they re-place on cascade
+            deadline = currentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        t.level = level;
+        t.slot = (int) ((deadline >>> (BITS * level)) & MASK);
+        t.prev = null;
+        t.next = wheel[level][t.slot];
+        if (t.next != null) {
+            t.next.prev = t;
+        }
+        wheel[level][t.slot] = t;
+        t.scheduled = true;
+    }
+
+    private void unlink(Timeout<T> t) {
+        if (t.prev != null) {
+            t.prev.next = t.next;
+        } else {
+            wheel[t.level][t.slot] = t.next;
+        }
+        if (t.next != null) {
+            t.next.prev = t.prev;
+        }
+        t.prev = t.next = null;
+        t.scheduled = false;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.Random;
+import org.pircbotx.Channel;
+import org.pircbotx.Colors;
+import org.pircbotx.PircBotX;
+import org.pircbotx.User;
+
+/**
+ * Channel toys: cocoa, stoke, coin and hi.
+ * @author Yizhe Shen
+ */
+public class ToysModule implements CommandModule {
+    private PircBotX bot;
+    private Random randGen;
+    
+    /* Declares the module without loading it */
+    public static class Provider implements ModuleProvider {
+        @Override
+        public String getName() {
+            return "toys";
+        }
+        
+        @Override
+        public String[] getCommands() {
+            return new String[] {"cocoa", "stoke", "coin", "hi"};
+        }
+        
+        @Override
+        public boolean isLoadedOnClones() {
+            return false;
+        }
+        
+        @Override
+        public CommandModule create(PircBotX bot) {
+            return new ToysModule(bot);
+        }
+    }
+    
+    public ToysModule(PircBotX parent) {
+        bot = parent;
+        randGen = new Random();
+    }
+    
+    @Override
+    public void processCommand(Channel channel, User user, String command, String[] params, String msg) {
+        if (command.equals("coin")){
+            coin(channel, user, params, msg);
+        } else if (command.equals("hi")){
+            hi(channel, user, params, msg);
+        } else if (command.equals("cocoa")){
+            cocoa(channel, user, params, msg);
+        } else if (command.equals("stoke")){
+            stoke(channel, user, params, msg);
+        }
+    }
+    
+    /**
+     * Displays the results of a coin flip.
+     * @param user
+     * @param channel 
+     * @param params 
+     * @param msg 
+     */
+    public void coin(Channel channel, User user, String[] params, String msg) {
+        int n = randGen.nextInt(2);
+        String outStr = formatBold(user.getNick()) + " flips a coin... and it lands on ";
+        if (n == 0){
+            outStr += formatBold("tails") + ".";
+        } else {
+            outStr += formatBold("heads") + ".";
+        }
+        bot.sendMessage(channel, outStr);
+    }
+    
+    /**
+     * Displays greetings to user in channel.
+     * @param user
+     * @param channel 
+     * @param params 
+     * @param msg 
+     */
+    public void hi(Channel channel, User user, String[] params, String msg) {
+        bot.sendMessage(channel, "Hi " + user.getNick() + "!");
+    }
+    
+    /**
+     * Hands out cups of hot chocolate.
+     * @param user
+     * @param channel
+     * @param params 
+     * @param msg 
+     */
+    public void cocoa(Channel channel, User user, String[] params, String msg) {
+        if (params.length < 1) {
+            bot.sendAction(channel, "hands " + user.getNick() + " a cup of hot chocolate. Cheers!");
+        } else {
+            String recip = params[0];
+            if (isUserInChannel(channel, recip)){
+                bot.sendAction(channel, "hands " + recip + " a cup of hot chocolate. Cheers!");
+            } else {
+                bot.sendNotice(user, recip + " is not in " + channel.getName() + ". :(");
+            }
+        }
+    }
+    
+    /**
+     * Stokes the fire.
+     * @param channel 
+     * @param user 
+     * @param params 
+     * @param msg 
+     */
+    public void stoke(Channel channel, User user, String[] params, String msg) {
+        bot.sendAction(channel, "stokes the glowing embers of the fire.");
+    }
+    
+    private boolean isUserInChannel(Channel channel, String nick){
+        for (User u : channel.getUsers()) {
+            if (u.getNick().equalsIgnoreCase(nick)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Returns the original string with IRC bold tags.
+     * @param str the original string
+     * @return the original string sandwiched with bold tags
+     */
+    private String formatBold(String str) {
+        return Colors.BOLD + str + Colors.BOLD;
+    }
+}
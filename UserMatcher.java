@@ -0,0 +1,209 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import org.pircbotx.Channel;
+import org.pircbotx.User;
+
+/**
+ * Finds the users in a channel that match a hostmask or regex. The pattern
+ * is compiled once, and large channels are scanned in parallel.
+ * @author Yizhe Shen
+ */
+public class UserMatcher {
+    /* Below this many users a plain loop is faster than forking */
+    private static final int PARALLEL_THRESHOLD = 2000;
+    private static final int CHUNK_SIZE = 512;
+    private static final ForkJoinPool pool = new ForkJoinPool();
+
+    private final Pattern pattern;
+    private final boolean isRegex;
+    private final boolean fullMask;
+    /* Which fields a hostmask pattern narrows down, for building bans */
+    private final boolean banNick, banLogin, banHost;
+
+    /* Scans a slice of the users array, splitting it while it is large */
+    private class ScanTask extends RecursiveTask<List<User>> {
+        private static final long serialVersionUID = 1L;
+        private final User[] users;
+        private final int from, to;
+        private final Set<User> ops;
+        private final User botUser;
+        private final AdminList admins;
+
+        ScanTask(User[] scanUsers, int start, int end, Set<User> scanOps, User scanBot, AdminList scanAdmins) {
+            users = scanUsers;
+            from = start;
+            to = end;
+            ops = scanOps;
+            botUser = scanBot;
+            admins = scanAdmins;
+        }
+
+        @Override
+        protected List<User> compute() {
+            if (to - from <= CHUNK_SIZE) {
+                return scanRange(users, from, to, ops, botUser, admins);
+            }
+            int mid = (from + to) >>> 1;
+            ScanTask left = new ScanTask(users, from, mid, ops, botUser, admins);
+            left.fork();
+            List<User> right = new ScanTask(users, mid, to, ops, botUser, admins).compute();
+            List<User> result = left.join();
+            result.addAll(right);
+            return result;
+        }
+    }
+
+    /**
+     * Compiles a pattern. A pattern wrapped in slashes, such as /^bot\d+$/,
+     * is a regex. Anything else is a hostmask with * and ? wildcards, and a
+     * hostmask without ! or @ matches nicks only.
+     * @param str the pattern
+     * @throws PatternSyntaxException if the regex is invalid
+     */
+    public UserMatcher(String str) {
+        if (str.length() > 2 && str.startsWith("/") && str.endsWith("/")) {
+            pattern = Pattern.compile(str.substring(1, str.length()-1), Pattern.CASE_INSENSITIVE);
+            isRegex = true;
+            fullMask = true;
+            banNick = banLogin = banHost = false;
+        } else {
+            StringBuilder regex = new StringBuilder();
+            for (char c : str.toCharArray()) {
+                if (c == '*') {
+                    regex.append(".*");
+                } else if (c == '?') {
+                    regex.append('.');
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            pattern = Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE);
+            isRegex = false;
+            fullMask = str.indexOf('!') >= 0 || str.indexOf('@') >= 0;
+            if (!fullMask) {
+                banNick = true;
+                banLogin = banHost = false;
+            } else {
+                int bang = str.indexOf('!');
+                int at = str.indexOf('@', Math.max(bang, 0));
+                String user = at < 0 ? str : str.substring(0, at);
+                banHost = at >= 0 && !isWildcard(str.substring(at + 1));
+                if (bang >= 0) {
+                    banNick = !isWildcard(user.substring(0, bang));
+                    banLogin = !isWildcard(user.substring(bang + 1));
+                } else {
+                    // The part before @ spans both nick and login
+                    banNick = banLogin = !isWildcard(user);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a single user against the pattern. A regex may match any part
+     * of nick!login@host, while a hostmask must match all of it.
+     * @param u the user
+     * @return true if the user matches
+     */
+    public boolean matches(User u) {
+        String target = fullMask ? u.getNick() + "!" + u.getLogin() + "@" + u.getHostmask() : u.getNick();
+        return isRegex ? pattern.matcher(target).find() : pattern.matcher(target).matches();
+    }
+
+    /**
+     * Returns a ban mask for a matched user that covers only the fields the
+     * pattern narrowed down, so that a nick pattern does not ban everyone
+     * sharing the user's host. For a regex, these are the fields that the
+     * match itself falls in.
+     * @param u a user that matches
+     * @return the ban mask
+     */
+    public String getBanMask(User u) {
+        String nick = u.getNick();
+        String login = u.getLogin();
+        String host = u.getHostmask();
+        boolean useNick = banNick, useLogin = banLogin, useHost = banHost;
+        if (isRegex) {
+            int loginStart = nick.length() + 1;
+            int hostStart = loginStart + login.length() + 1;
+            Matcher m = pattern.matcher(nick + "!" + login + "@" + host);
+            if (m.find()) {
+                // An empty match still belongs to the field it sits in
+                int end = Math.max(m.end(), m.start() + 1);
+                useNick = m.start() < loginStart;
+                useLogin = m.start() < hostStart && end > loginStart;
+                useHost = end > hostStart;
+            } else {
+                useNick = useLogin = useHost = true;
+            }
+        }
+        if (!useNick && !useLogin && !useHost) {
+            useNick = true;
+        }
+        return (useNick ? nick : "*") + "!" + (useLogin ? login : "*") + "@" + (useHost ? host : "*");
+    }
+
+    /**
+     * Returns the users in a channel that match, leaving out the bot,
+     * channel ops and bot admins.
+     * @param channel the channel
+     * @param botUser the bot's own user
+     * @param admins the bot admins
+     * @return the matching users
+     */
+    public List<User> scan(Channel channel, User botUser, AdminList admins) {
+        User[] users = channel.getUsers().toArray(new User[0]);
+        // Copied once, since Channel.isOp locks the channel's op set on
+        // every call and the workers would all contend for it
+        Set<User> ops = new HashSet<>(Arrays.asList(channel.getOps().toArray(new User[0])));
+        if (users.length < PARALLEL_THRESHOLD) {
+            return scanRange(users, 0, users.length, ops, botUser, admins);
+        }
+        return pool.invoke(new ScanTask(users, 0, users.length, ops, botUser, admins));
+    }
+
+    private List<User> scanRange(User[] users, int from, int to, Set<User> ops, User botUser, AdminList admins) {
+        ArrayList<User> matches = new ArrayList<>();
+        for (int ctr = from; ctr < to; ctr++) {
+            User u = users[ctr];
+            if (matches(u) && u != botUser && !ops.contains(u) && !admins.contains(u.getHostmask())) {
+                matches.add(u);
+            }
+        }
+        return matches;
+    }
+
+    private static boolean isWildcard(String part) {
+        for (int ctr = 0; ctr < part.length(); ctr++) {
+            if (part.charAt(ctr) != '*') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
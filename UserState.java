@@ -0,0 +1,177 @@
+/*
+    Copyright (C) 2013-2014 Yizhe Shen <brrr@live.ca>
+
+    This file is part of ircutil.
+
+    ircutil is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    ircutil is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with ircutil.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package ircutil;
+
+import java.util.*;
+import org.pircbotx.PircBotX;
+import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.ConnectEvent;
+import org.pircbotx.hooks.events.DisconnectEvent;
+import org.pircbotx.hooks.events.NickChangeEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+import org.pircbotx.hooks.events.ServerResponseEvent;
+
+/**
+ * Looks up single users on demand instead of polling whole channels with
+ * NAMES and WHO. Lookups use WHOX when the server advertises it, and the
+ * hosts they return are kept until the user quits. The server's KICK
+ * target limit is read from ISUPPORT as well.
+ * @author Yizhe Shen
+ */
+public class UserState extends ListenerAdapter<PircBotX> {
+    private static final int MAX_USERS = 50000;
+    private static final long LOOKUP_INTERVAL = 60000;
+    /* Query type echoed back in WHOX replies so that ours can be told apart */
+    private static final String WHOX_TOKEN = "42";
+
+    private final PircBotX bot;
+    private final LinkedHashMap<String, String> hosts;
+    private final HashMap<String, Long> lookups;
+    private volatile boolean whox;
+    private volatile int kickTargets;
+
+    /**
+     * Creates the lookup state for a bot. It must also be added to the
+     * bot's listeners.
+     * @param parent the bot
+     */
+    public UserState(PircBotX parent) {
+        bot = parent;
+        hosts = new LinkedHashMap<String, String>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > MAX_USERS;
+            }
+        };
+        lookups = new HashMap<>();
+        kickTargets = 1;
+    }
+
+    /**
+     * Returns the host found for a nick by a WHOX lookup.
+     * @param nick the nick
+     * @return the host, or null if no lookup has answered for the nick
+     */
+    public synchronized String getHost(String nick) {
+        return hosts.get(nick.toLowerCase());
+    }
+
+    /**
+     * Asks the server about a single nick, at most once a minute per nick.
+     * A WHOX reply is kept for getHost, and a plain WHO reply updates the
+     * user in PircBotX itself.
+     * @param nick the nick
+     */
+    public void lookup(String nick) {
+        String key = nick.toLowerCase();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Long last = lookups.get(key);
+            if (last != null && now - last < LOOKUP_INTERVAL) {
+                return;
+            }
+            lookups.put(key, now);
+            if (lookups.size() > MAX_USERS) {
+                lookups.clear();
+            }
+        }
+        bot.sendRawLine(whox ? "WHO " + nick + " %tnuhar," + WHOX_TOKEN : "WHO " + nick);
+    }
+
+    /**
+     * Returns how many nicks the server accepts in one KICK, as advertised
+     * by TARGMAX in ISUPPORT.
+     * @return the limit, or 1 if the server did not advertise one
+     */
+    public int getKickTargets() {
+        return kickTargets;
+    }
+
+    @Override
+    public synchronized void onConnect(ConnectEvent<PircBotX> event) {
+        hosts.clear();
+        lookups.clear();
+    }
+
+    @Override
+    public void onDisconnect(DisconnectEvent<PircBotX> event) {
+        // Cleared here rather than on connect, since ISUPPORT may be handled
+        // before the ConnectEvent on another listener thread
+        whox = false;
+        kickTargets = 1;
+    }
+
+    @Override
+    public synchronized void onNickChange(NickChangeEvent<PircBotX> event) {
+        String host = hosts.remove(event.getOldNick().toLowerCase());
+        if (host != null) {
+            hosts.put(event.getNewNick().toLowerCase(), host);
+        }
+    }
+
+    @Override
+    public synchronized void onQuit(QuitEvent<PircBotX> event) {
+        hosts.remove(event.getUser().getNick().toLowerCase());
+    }
+
+    @Override
+    public void onServerResponse(ServerResponseEvent<PircBotX> event) {
+        int code = event.getCode();
+        if (code != 5 && code != 354) {
+            return;
+        }
+        String[] parts = event.getResponse().split(" ");
+        if (code == 5) {
+            for (String token : parts) {
+                if (token.equals("WHOX")) {
+                    whox = true;
+                } else if (token.startsWith("TARGMAX=")) {
+                    kickTargets = parseKickTargets(token.substring(8));
+                }
+            }
+        } else if (parts.length >= 5 && parts[1].equals(WHOX_TOKEN)) {
+            // me token login host nick account :realname
+            synchronized (this) {
+                hosts.put(parts[4].toLowerCase(), parts[3]);
+            }
+        }
+    }
+
+    /**
+     * Reads the KICK limit from a TARGMAX value such as "KICK:4,PRIVMSG:4".
+     * An empty limit means no limit.
+     */
+    private static int parseKickTargets(String value) {
+        for (String entry : value.split(",")) {
+            if (entry.toUpperCase().startsWith("KICK:")) {
+                String limit = entry.substring(5);
+                if (limit.isEmpty()) {
+                    return Integer.MAX_VALUE;
+                }
+                try {
+                    return Math.max(1, Integer.parseInt(limit));
+                } catch (NumberFormatException e) {
+                    return 1;
+                }
+            }
+        }
+        return 1;
+    }
+}
@@ -19,41 +19,115 @@
 
 package ircutil;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
 import org.pircbotx.*;
+import org.pircbotx.hooks.Event;
 import org.pircbotx.hooks.ListenerAdapter;
+import org.pircbotx.hooks.events.ConnectEvent;
+import org.pircbotx.hooks.events.JoinEvent;
 import org.pircbotx.hooks.events.MessageEvent;
 import org.pircbotx.hooks.events.NoticeEvent;
+import org.pircbotx.hooks.events.OpEvent;
+import org.pircbotx.hooks.events.PartEvent;
 import org.pircbotx.hooks.events.PrivateMessageEvent;
+import org.pircbotx.hooks.events.QuitEvent;
+import org.pircbotx.hooks.events.UserListEvent;
 
 /**
  * A set of useful functions for an IRC bot.
  * @author Yizhe Shen
  */
-public class Utilities extends ListenerAdapter<PircBotX>{
+public class Utilities extends ListenerAdapter<PircBotX> implements BatchingListenerManager.BatchListener<PircBotX>{
+    /* Off-heap bytes of message history kept per channel */
+    private static final int HISTORY_BUDGET = 256 * 1024;
+    /* Slots in the seen table, at 21 bytes each */
+    private static final int SEEN_TABLE_SIZE = 1 << 21;
+    /* Sliding window for spam detection and how long auto-quiets and bans last */
+    private static final long SPAM_WINDOW = 10000;
+    private static final long SPAM_PENALTY = 600000;
+    /* Parallelism and rate of clone reconnections when restoring the fleet */
+    private static final int RESTORE_THREADS = 16;
+    private static final int RESTORE_RATE = 20;
+    /* Most nicks per KICK line, used only when TARGMAX=KICK allows several */
+    private static final int KICKS_PER_LINE = 4;
     
     private PircBotX bot;
     private char commandChar;
     private long startTime;
-    private ArrayList<String> adminList;
-    private ArrayList<CloneBot> cloneList;
-    Random randGen;
+    private AdminList adminList;
+    private List<CloneBot> cloneList;
+    private FleetManifest manifest;
+    private ServerPool serverPool;
+    private volatile boolean restoring;
+    private boolean restored;
+    private TimedModes timedModes;
+    private HashMap<String, ChannelHistory> historyMap;
+    private SeenTracker seenTracker;
+    private SpamDetector spamDetector;
+    private UserState userState;
+    private String spamAction;
+    private ThreadLocal<String> lastNotice;
+    private ModuleManager modules;
     
     public Utilities(PircBotX parent, char commChar){
+        this(parent, commChar, true);
+    }
+    
+    /**
+     * Creates the utilities for a bot. On the main bot they add themselves
+     * to the bot's listener manager, which is first replaced by a
+     * BatchingListenerManager unless batchEvents is false.
+     * @param parent the bot
+     * @param commChar the command prefix
+     * @param batchEvents true to coalesce JOIN, QUIT and NAMES bursts
+     */
+    public Utilities(PircBotX parent, char commChar, boolean batchEvents){
         bot = parent;
         commandChar = commChar;
         startTime = System.currentTimeMillis();
-        randGen = new Random();
-        adminList = loadHostList("admins.txt");
-        cloneList = new ArrayList<>();
+        modules = new ModuleManager(bot);
+        adminList = AdminList.forFile(bot, "admins.txt");
+        cloneList = new CopyOnWriteArrayList<>();
+        lastNotice = new ThreadLocal<>();
+        // Only the main bot keeps these, since clones would share its files
+        if (!(parent instanceof CloneBot)) {
+            if (batchEvents) {
+                BatchingListenerManager.install(bot);
+            }
+            manifest = new FleetManifest(bot, "fleet.txt");
+            serverPool = new ServerPool(bot, "servers.txt");
+            serverPool.setFleetChangeHandler(new Runnable() {
+                @Override
+                public void run() {
+                    saveFleet();
+                }
+            });
+            timedModes = new TimedModes(bot, "timedmodes.txt");
+            historyMap = new HashMap<>();
+            seenTracker = new SeenTracker(bot, SEEN_TABLE_SIZE, "seen.dat");
+            spamDetector = new SpamDetector(bot, SPAM_WINDOW);
+            spamAction = "warn";
+            userState = new UserState(bot);
+            bot.getListenerManager().addListener(userState);
+            // The manager may have been replaced, so the caller's one is stale
+            bot.getListenerManager().addListener(this);
+        }
     }
 
+    @Override
+    public void onConnect(ConnectEvent<PircBotX> event){
+        if (manifest != null && !restored) {
+            restored = true;
+            restoreFleet();
+        }
+    }
+    
     @Override
     public void onNotice (NoticeEvent<PircBotX> event){
         String msg = event.getMessage();
@@ -68,6 +142,20 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     public void onMessage(MessageEvent<PircBotX> event){
         String msg = event.getMessage();
         
+        if (historyMap != null) {
+            getHistory(event.getChannel().getName()).add(event.getTimestamp(), event.getUser().getNick(), msg);
+        }
+        if (seenTracker != null) {
+            seenTracker.record(event.getUser().getNick(), SeenTracker.SPOKE, event.getChannel().getName(), event.getTimestamp());
+        }
+        if (spamDetector != null && !isExempt(event.getChannel(), event.getUser())) {
+            int violation = spamDetector.checkMessage(event.getChannel(), msg, event.getTimestamp());
+            if (violation != SpamDetector.NONE) {
+                punish(event.getChannel(), event.getUser(), violation);
+                return;
+            }
+        }
+        
         // Parse the message if it is a command
         if (msg.length() > 1 && msg.charAt(0) == commandChar && msg.charAt(1) != ' ') {
             msg = msg.substring(1);
@@ -81,6 +169,98 @@ public class Utilities extends ListenerAdapter<PircBotX>{
         }
     }
     
+    @Override
+    public void onJoin(JoinEvent<PircBotX> event){
+        if (seenTracker != null) {
+            seenTracker.record(event.getUser().getNick(), SeenTracker.JOINED, event.getChannel().getName(), event.getTimestamp());
+        }
+        checkJoinFlood(event);
+    }
+    
+    @Override
+    public void onPart(PartEvent<PircBotX> event){
+        if (seenTracker != null) {
+            seenTracker.record(event.getUser().getNick(), SeenTracker.PARTED, event.getChannel().getName(), event.getTimestamp());
+        }
+    }
+    
+    @Override
+    public void onOp(OpEvent<PircBotX> event){
+        // Expired modes in the channel can be removed now
+        if (timedModes != null && event.isOp() && event.getRecipient() == bot.getUserBot()) {
+            timedModes.retry(event.getChannel().getName());
+        }
+    }
+    
+    @Override
+    public void onUserList(UserListEvent<PircBotX> event){
+        // Sent when the bot joins a channel, so it knows if it is opped
+        if (timedModes != null) {
+            timedModes.retry(event.getChannel().getName());
+        }
+    }
+    
+    @Override
+    public void onQuit(QuitEvent<PircBotX> event){
+        if (seenTracker != null) {
+            seenTracker.record(event.getUser().getNick(), SeenTracker.QUIT, null, event.getTimestamp());
+        }
+    }
+    
+    /**
+     * Handles a burst of joins and quits from a BatchingListenerManager.
+     * All sightings are recorded in one update, and users returning from a
+     * netsplit are not counted towards join floods.
+     * @param event the batch
+     */
+    @Override
+    public void onBatch(BatchEvent<PircBotX> event){
+        if (event.isNetsplit()) {
+            bot.log("Netsplit " + event.getSplits() + ": " + event.getQuits().size() + " quit(s).");
+        }
+        if (seenTracker != null) {
+            List<Event<PircBotX>> events = event.getEvents();
+            String[] nicks = new String[events.size()];
+            byte[] kinds = new byte[events.size()];
+            String[] channels = new String[events.size()];
+            long[] times = new long[events.size()];
+            int count = 0;
+            for (Event<PircBotX> e : events) {
+                if (e instanceof JoinEvent) {
+                    JoinEvent<PircBotX> join = (JoinEvent<PircBotX>) e;
+                    nicks[count] = join.getUser().getNick();
+                    kinds[count] = SeenTracker.JOINED;
+                    channels[count] = join.getChannel().getName();
+                } else if (e instanceof QuitEvent) {
+                    QuitEvent<PircBotX> quit = (QuitEvent<PircBotX>) e;
+                    nicks[count] = quit.getUser().getNick();
+                    kinds[count] = SeenTracker.QUIT;
+                } else {
+                    continue;
+                }
+                times[count++] = e.getTimestamp();
+            }
+            seenTracker.recordAll(nicks, kinds, channels, times, count);
+        }
+        for (JoinEvent<PircBotX> join : event.getJoins()) {
+            if (!event.isRejoin(join)) {
+                checkJoinFlood(join);
+            }
+        }
+    }
+    
+    /**
+     * Checks a join for join floods.
+     * @param event the join
+     */
+    private void checkJoinFlood(JoinEvent<PircBotX> event){
+        if (spamDetector != null && !isExempt(event.getChannel(), event.getUser())) {
+            if (spamDetector.checkJoin(event.getChannel().getName(), event.getTimestamp()) != SpamDetector.NONE) {
+                punish(event.getChannel(), event.getUser(), SpamDetector.JOIN_FLOOD);
+            }
+        }
+    }
+    
     @Override
     public void onPrivateMessage (PrivateMessageEvent<PircBotX> event){
         String msg = event.getMessage();
@@ -124,10 +304,12 @@ public class Utilities extends ListenerAdapter<PircBotX>{
      * @param msg the entire original message
      */
     public void processPM(User user, String command, String[] params, String msg){
+        lastNotice.remove();
         // Check if the user is an admin
         if (!isAdmin(user)){
             // Do nothing to prevent potential spamming.
             //informUser(user, "You are not authorized to make this command.");
+            return;
         } else if (command.equalsIgnoreCase("join")){
             join(user, params, msg);
         } else if (command.equalsIgnoreCase("part") || command.equalsIgnoreCase("leave")){
@@ -158,6 +340,8 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             removeadmin(user, params, msg);
         } else if (command.equalsIgnoreCase("listadmins")) {
             listadmins(user, params, msg);
+        } else if (command.equalsIgnoreCase("reloadadmins")) {
+            reloadadmins(user, params, msg);
         } else if (command.equalsIgnoreCase("msg")){
             msg(user, params, msg);
         } else if (command.equalsIgnoreCase("notice")) {
@@ -176,7 +360,68 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             removeallclones(user, params, msg);
         } else if (command.equalsIgnoreCase("listclones")) {
             listclones(user, params, msg);
+        } else if (command.equalsIgnoreCase("clonesay")) {
+            clonesay(user, params, msg);
+        } else if (command.equalsIgnoreCase("cloneact")) {
+            cloneact(user, params, msg);
+        } else if (command.equalsIgnoreCase("history")) {
+            history(user, params, msg);
+        } else if (command.equalsIgnoreCase("antispam")) {
+            antispam(user, params, msg);
+        } else if (command.equalsIgnoreCase("audit")) {
+            audit(user, params, msg);
+        } else if (command.equalsIgnoreCase("masskick")) {
+            masskick(user, params, msg);
+        } else if (command.equalsIgnoreCase("massban")) {
+            massban(user, params, msg);
+        } else if (command.equalsIgnoreCase("modules")) {
+            modules(user, params, msg);
+        } else {
+            return;
         }
+        
+        // Record the admin command, using the last notice sent back as the result.
+        // Non-admins and unknown commands returned above and are never recorded.
+        String result = lastNotice.get();
+        String args = getAuditArgs(command, msg.substring(command.length()).trim());
+        AuditLog.get().record(bot.getNick(), user.getNick() + "!" + user.getLogin() + "@" + user.getHostmask(),
+                              command.toLowerCase(), args, result == null ? "ok" : result);
+    }
+    
+    /**
+     * Returns the arguments of an admin command as they are to be audited.
+     * The log is plain text, so messages to services and raw lines that can
+     * carry passwords keep only their command and target.
+     * @param command the command
+     * @param args the arguments
+     * @return the arguments, possibly redacted
+     */
+    private static String getAuditArgs(String command, String args){
+        String[] words = args.split(" ", 3);
+        if (command.equalsIgnoreCase("msg") || command.equalsIgnoreCase("notice")) {
+            if (isService(words[0])) {
+                return words[0] + " [redacted]";
+            }
+        } else if (command.equalsIgnoreCase("raw")) {
+            String verb = words[0].toUpperCase();
+            if (verb.matches("PASS|OPER|AUTHENTICATE|NS|CS|NICKSERV|CHANSERV|IDENTIFY")) {
+                return words[0] + " [redacted]";
+            }
+            if (verb.matches("PRIVMSG|NOTICE|SQUERY") && words.length > 1 && isService(words[1])) {
+                return words[0] + " " + words[1] + " [redacted]";
+            }
+        }
+        return args;
+    }
+    
+    /**
+     * Checks if a message target is a network service, such as NickServ or
+     * a nick@server target like Q@CServe.quakenet.org.
+     * @param target the target
+     * @return true if the target looks like a service
+     */
+    private static boolean isService(String target){
+        return target.indexOf('@') > 0 || target.toLowerCase().endsWith("serv");
     }
     
     /**
@@ -197,18 +442,14 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             channels(channel, user, params, msg);
         } else if (command.equalsIgnoreCase("lag")){
             lag(channel, user, params, msg);
-        } else if (command.equalsIgnoreCase("coin")){
-            coin(channel, user, params, msg);
-        } else if (command.equalsIgnoreCase("hi")){
-            hi(channel, user, params, msg);
-        } else if (command.equalsIgnoreCase("cocoa")){
-            cocoa(channel, user, params, msg);
-        } else if (command.equalsIgnoreCase("stoke")){
-            stoke(channel, user, params, msg);
+        } else if (command.equalsIgnoreCase("seen")){
+            seen(channel, user, params, msg);
         } else if (command.equalsIgnoreCase("commands")){
             commands(channel, user, params, msg);
         } else if (command.equalsIgnoreCase("help")){
             help(channel, user, params, msg);
+        } else {
+            modules.processCommand(channel, user, command, params, msg);
         }
     } 
     
@@ -227,9 +468,11 @@ public class Utilities extends ListenerAdapter<PircBotX>{
         } else {
             String channel = params[0];
             if (!channel.startsWith("#")){
-                bot.joinChannel("#" + channel);
-            } else {
-                bot.joinChannel(channel);
+                channel = "#" + channel;
+            }
+            bot.joinChannel(channel);
+            if (manifest != null) {
+                manifest.addChannel(channel);
             }
         }
     }
@@ -247,6 +490,9 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             String channel = params[0];
             if (bot.channelExists(channel)){
                 bot.partChannel(bot.getChannel(channel));
+                if (manifest != null) {
+                    manifest.removeChannel(channel);
+                }
             } else {
                 informUser(user, bot.getNick() + " is not in " + channel + ".");
             }
@@ -310,7 +556,7 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     }
     
     /**
-     * Quiets a user in a specified channel.
+     * Quiets a user in a specified channel, optionally for a limited time.
      * @param user
      * @param params
      * @param msg 
@@ -320,6 +566,9 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             informUser(user, "Missing parameter(s).");
         } else {
             mode(user, new String[] {params[0], "+q " + params[1]}, msg);
+            if (params.length > 2) {
+                addTimedMode(user, params[0], 'q', params[1], params[2]);
+            }
         }
     }
     
@@ -334,6 +583,9 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             informUser(user, "Missing parameter(s).");
         } else {
             mode(user, new String[] {params[0], "-q " + params[1]}, msg);
+            if (timedModes != null) {
+                timedModes.cancel(params[0], 'q', params[1]);
+            }
         }
     }
     
@@ -369,7 +621,8 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     }
     
     /**
-     * Bans the specified user from the specified channel.
+     * Bans the specified user from the specified channel, optionally for a
+     * limited time.
      * @param user
      * @param params
      * @param msg 
@@ -379,6 +632,9 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             informUser(user, "Missing parameter(s).");
         } else {
             mode(user, new String[] {params[0], "+b " + params[1]}, msg);
+            if (params.length > 2) {
+                addTimedMode(user, params[0], 'b', params[1], params[2]);
+            }
         }
     }
     
@@ -393,6 +649,9 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             informUser(user, "Missing parameter(s).");
         } else {
             mode(user, new String[] {params[0], "-b " + params[1]}, msg);
+            if (timedModes != null) {
+                timedModes.cancel(params[0], 'b', params[1]);
+            }
         }
     }
     
@@ -438,8 +697,14 @@ public class Utilities extends ListenerAdapter<PircBotX>{
                 for (User u : c.getUsers()) {
                     // If we find the user, we can add them to the admin list
                     if (u.getNick().equalsIgnoreCase(nick)){
-                        adminList.add(u.getHostmask());
-                        saveHostList("admins.txt", adminList);
+                        String host = getHost(u);
+                        if (host == null && userState == null) {
+                            informUser(user, nick + "'s host is not known.");
+                        } else if (host == null) {
+                            informUser(user, "Looking up " + nick + ", try again in a moment.");
+                        } else {
+                            adminList.add(host);
+                        }
                         return;
                     }
                 }
@@ -467,7 +732,6 @@ public class Utilities extends ListenerAdapter<PircBotX>{
                     // If we find the user, we can remove them from the admin list
                     if (u.getNick().equalsIgnoreCase(nick)){
                         adminList.remove(u.getHostmask());
-                        saveHostList("admins.txt", adminList);
                         return;
                     }
                 }
@@ -485,17 +749,33 @@ public class Utilities extends ListenerAdapter<PircBotX>{
      * @param msg 
      */
     public void listadmins(User user, String[] params, String msg) {
-        if (adminList.isEmpty()) {
+        List<String> admins = adminList.getAll();
+        if (admins.isEmpty()) {
             informUser(user, "No admins to list.");
         } else {
-            String outStr = String.format("Admins (%d): ", adminList.size());
-            for (String admin : adminList) {
+            String outStr = String.format("Admins (%d): ", admins.size());
+            for (String admin : admins) {
                 outStr += admin + ", ";
             }
             informUser(user, outStr.substring(0, outStr.length()-2));
         }
     }
     
+    /**
+     * Reloads the bot admins from file.
+     * @param user 
+     * @param params 
+     * @param msg 
+     */
+    public void reloadadmins(User user, String[] params, String msg) {
+        int count = adminList.reload();
+        if (count < 0) {
+            informUser(user, "Could not read the admin list, kept " + adminList.getAll().size() + " admin(s).");
+        } else {
+            informUser(user, "Loaded " + count + " admin(s).");
+        }
+    }
+    
     /**
      * Sends a message to the specified recipient.
      * @param user
@@ -569,6 +849,157 @@ public class Utilities extends ListenerAdapter<PircBotX>{
         }
     }
     
+    /**
+     * Displays recent messages in a channel, optionally from one nick.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void history(User user, String[] params, String msg) {
+        if (params.length < 1) {
+            informUser(user, "Missing parameter(s).");
+        } else if (historyMap == null) {
+            informUser(user, "History is not available on " + bot.getNick() + ".");
+        } else {
+            String channel = params[0];
+            String nick = null;
+            int count = 10;
+            for (int ctr = 1; ctr < params.length; ctr++) {
+                try {
+                    count = Math.min(Integer.parseInt(params[ctr]), 25);
+                } catch (NumberFormatException e) {
+                    nick = params[ctr];
+                }
+            }
+            
+            ChannelHistory history;
+            synchronized (historyMap) {
+                history = historyMap.get(channel.toLowerCase());
+            }
+            List<String> lines = history == null ? new ArrayList<String>() : history.get(nick, count);
+            if (lines.isEmpty()) {
+                informUser(user, "No history found for " + (nick == null ? channel : nick + " in " + channel) + ".");
+            } else {
+                for (String line : lines) {
+                    informUser(user, line);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Shows or changes how the bot responds to spam. The action is one of
+     * off, warn, quiet or ban. Thresholds are changed with
+     * "antispam set <repeats|joins|highlights> <n>".
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void antispam(User user, String[] params, String msg) {
+        if (spamDetector == null) {
+            informUser(user, "Anti-spam is not available on " + bot.getNick() + ".");
+        } else if (params.length < 1) {
+            informUser(user, "Anti-spam action: " + spamAction + ", " + spamDetector.getThresholds());
+        } else if (params[0].equalsIgnoreCase("set")) {
+            if (params.length < 3) {
+                informUser(user, "Missing parameter(s).");
+                return;
+            }
+            int n;
+            try {
+                n = Integer.parseInt(params[2]);
+            } catch (NumberFormatException e) {
+                informUser(user, params[2] + " is not a number.");
+                return;
+            }
+            if (n < 1) {
+                informUser(user, "Thresholds must be at least 1.");
+                return;
+            }
+            if (params[1].equalsIgnoreCase("repeats")) {
+                spamDetector.setRepeatThreshold(n);
+            } else if (params[1].equalsIgnoreCase("joins")) {
+                spamDetector.setJoinThreshold(n);
+            } else if (params[1].equalsIgnoreCase("highlights")) {
+                spamDetector.setHighlightThreshold(n);
+            } else {
+                informUser(user, "Unknown threshold: " + params[1] + ".");
+            }
+        } else if (params[0].matches("(?i)off|warn|quiet|ban")) {
+            spamAction = params[0].toLowerCase();
+        } else {
+            informUser(user, "Unknown action: " + params[0] + ". Use off, warn, quiet or ban.");
+        }
+    }
+    
+    /**
+     * Displays recent entries from the audit log.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void audit(User user, String[] params, String msg) {
+        int count = 10;
+        if (params.length > 0) {
+            try {
+                count = Math.min(Integer.parseInt(params[0]), 25);
+            } catch (NumberFormatException e) {
+                informUser(user, params[0] + " is not a number.");
+                return;
+            }
+        }
+        AuditLog log = AuditLog.get();
+        List<String> lines = log.getRecent(count);
+        if (lines.isEmpty()) {
+            informUser(user, "No audit entries to list.");
+        }
+        for (String line : lines) {
+            informUser(user, line);
+        }
+        if (log.getDropped() > 0) {
+            informUser(user, log.getDropped() + " audit entries were dropped.");
+        }
+    }
+    
+    /**
+     * Kicks every user in a channel matching a hostmask or /regex/. Ops,
+     * bot admins and the bot itself are never matched. With -n, only
+     * reports how many users would be kicked.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void masskick(User user, String[] params, String msg) {
+        massRemove(user, params, msg, false);
+    }
+    
+    /**
+     * Bans and kicks every user in a channel matching a hostmask or
+     * /regex/. Ops, bot admins and the bot itself are never matched. With
+     * -n, only reports how many users would be banned.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void massban(User user, String[] params, String msg) {
+        massRemove(user, params, msg, true);
+    }
+    
+    /**
+     * Lists the modules this bot has loaded so far.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void modules(User user, String[] params, String msg) {
+        List<String> loaded = modules.getLoaded();
+        if (loaded.isEmpty()) {
+            informUser(user, "No modules loaded yet.");
+        } else {
+            informUser(user, "Loaded modules: " + loaded.toString().replace("[", "").replace("]", ""));
+        }
+    }
+    
     /**
      * Adds a CloneBot to the specified channel.
      * @param user
@@ -583,8 +1014,13 @@ public class Utilities extends ListenerAdapter<PircBotX>{
             String channel = params[1];
             try {
                 CloneBot newClone = new CloneBot(nick, channel);
-                newClone.connect(bot.getServer());
+                if (serverPool != null) {
+                    serverPool.connect(newClone);
+                } else {
+                    newClone.connectClone(bot.getServer(), bot.getPort());
+                }
                 cloneList.add(newClone);
+                saveFleet();
             } catch (Exception e) {
                 bot.log("Error: " + e);
                 informUser(user, "Error: " + e);
@@ -606,8 +1042,14 @@ public class Utilities extends ListenerAdapter<PircBotX>{
                 String nick = params[0];
                 for (CloneBot cBot : cloneList) {
                     if (cBot.getNick().equalsIgnoreCase(nick)) {
-                        cBot.quitServer("Bad clone.");
+                        if (serverPool != null) {
+                            serverPool.retire(cBot);
+                        }
+                        if (cBot.isConnected()) {
+                            cBot.quitServer("Bad clone.");
+                        }
                         cloneList.remove(cBot);
+                        saveFleet();
                         break;
                     }
                 }
@@ -626,10 +1068,14 @@ public class Utilities extends ListenerAdapter<PircBotX>{
      */
     public void removeallclones(User user, String[] params, String msg) {
         try {
-            for (CloneBot cBot : cloneList) {
-                cBot.quitServer("Bad clone.");
+            if (serverPool != null) {
+                for (CloneBot cBot : cloneList) {
+                    serverPool.retire(cBot);
+                }
             }
+            CloneBroadcast.send(cloneList, CloneBroadcast.encode("QUIT :Bad clone."), 0);
             cloneList.clear();
+            saveFleet();
         } catch (Exception e) {
             bot.log("Error: " + e);
             informUser(user, "Error: " + e);
@@ -651,9 +1097,35 @@ public class Utilities extends ListenerAdapter<PircBotX>{
                 outStr += cBot.getNick() + ", ";
             }
             informUser(user, outStr.substring(0, outStr.length()-2));
+            if (serverPool != null) {
+                informUser(user, "Endpoints: " + serverPool.getDistribution());
+            }
         }
     }
     
+    /**
+     * Makes every clone send a message to the specified recipient. With
+     * "-s ms" before the recipient, the clones send one after another, ms
+     * apart, instead of all at once.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void clonesay(User user, String[] params, String msg) {
+        cloneSend(user, params, msg, false);
+    }
+    
+    /**
+     * Makes every clone send an action to the specified recipient. Takes
+     * the same "-s ms" option as clonesay.
+     * @param user
+     * @param params
+     * @param msg 
+     */
+    public void cloneact(User user, String[] params, String msg) {
+        cloneSend(user, params, msg, true);
+    }
+    
     ////////////////////////////////////
     //// In-channel command methods ////
     ////////////////////////////////////
@@ -711,65 +1183,38 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     }
     
     /**
-     * Displays the results of a coin flip.
-     * @param user
-     * @param channel 
-     * @param params 
-     * @param msg 
-     */
-    public void coin(Channel channel, User user, String[] params, String msg) {
-        int n = randGen.nextInt(2);
-        String outStr = formatBold(user.getNick()) + " flips a coin... and it lands on ";
-        if (n == 0){
-            outStr += formatBold("tails") + ".";
-        } else {
-            outStr += formatBold("heads") + ".";
-        }
-        bot.sendMessage(channel, outStr);
-    }
-    
-    /**
-     * Displays greetings to user in channel.
-     * @param user
+     * Displays when and where a nick was last seen.
      * @param channel 
+     * @param user 
      * @param params 
      * @param msg 
      */
-    public void hi(Channel channel, User user, String[] params, String msg) {
-        bot.sendMessage(channel, "Hi " + user.getNick() + "!");
-    }
-    
-    /**
-     * Hands out cups of hot chocolate.
-     * @param user
-     * @param channel
-     * @param params 
-     * @param msg 
-     */
-    public void cocoa(Channel channel, User user, String[] params, String msg) {
+    public void seen(Channel channel, User user, String[] params, String msg) {
         if (params.length < 1) {
-            bot.sendAction(channel, "hands " + user.getNick() + " a cup of hot chocolate. Cheers!");
+            informUser(user, "Missing parameter(s).");
+        } else if (seenTracker == null) {
+            informUser(user, "Seen is not available on " + bot.getNick() + ".");
         } else {
-            String recip = params[0];
-            if (isUserInChannel(channel, recip)){
-                bot.sendAction(channel, "hands " + recip + " a cup of hot chocolate. Cheers!");
+            String nick = params[0];
+            SeenTracker.Sighting s = seenTracker.get(nick);
+            if (s == null) {
+                bot.sendMessage(channel, "I have not seen " + nick + ".");
+                return;
+            }
+            String what;
+            if (s.kind == SeenTracker.SPOKE) {
+                what = "speaking in " + s.channel;
+            } else if (s.kind == SeenTracker.JOINED) {
+                what = "joining " + s.channel;
+            } else if (s.kind == SeenTracker.PARTED) {
+                what = "leaving " + s.channel;
             } else {
-                informUser(user, recip + " is not in " + channel.getName() + ". :(");
+                what = "quitting";
             }
+            bot.sendMessage(channel, nick + " was last seen " + what + " " + formatAge(System.currentTimeMillis() - s.time) + " ago.");
         }
     }
     
-    /**
-     * Stokes the fire.
-     * @param channel 
-     * @param user 
-     * @param params 
-     * @param msg 
-     */
-    public void stoke(Channel channel, User user, String[] params, String msg) {
-        bot.sendAction(channel, "stokes the glowing embers of the fire.");
-    }
-    
     /**
      * Displays a list of commands available in this module.
      * @param channel 
@@ -778,11 +1223,16 @@ public class Utilities extends ListenerAdapter<PircBotX>{
      * @param msg 
      */
     public void commands(Channel channel, User user, String[] params, String msg) {
-        bot.sendMessage(channel, "Commands: channels, time, uptime, lag, cocoa, stoke, coin, hi, help, commands");
+        StringBuilder list = new StringBuilder("Commands: channels, time, uptime, lag, seen, ");
+        for (String command : modules.getCommands()) {
+            list.append(command).append(", ");
+        }
+        bot.sendMessage(channel, list + "help, commands");
         if (isAdmin(user)){
             informUser(user, "Admin Commands: msg, notice, action, raw, join, part, op, deop, " +
                              "voice, devoice, quiet, unquiet, kick, ban, unban, mode, nick, " +
-                             "addadmin, removeadmin, listadmins, addclone, removeclone, removeallclones, listclones");
+                             "addadmin, removeadmin, listadmins, reloadadmins, addclone, removeclone, removeallclones, listclones, " +
+                             "clonesay, cloneact, history, antispam, audit, masskick, massban, modules");
         }
     }
             
@@ -816,45 +1266,341 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     }
     
     /**
-     * Determines if a user is an admin for the bot.
-     * @param user the user to check
-     * @return true if the user is on the admin list
+     * Checks if a user is exempt from spam detection.
+     * @param channel the channel
+     * @param user the user
+     * @return true for the bot itself, its clones, channel ops and bot admins
      */
-    private boolean isAdmin (User user){
-        return adminList.contains(user.getHostmask());
+    private boolean isExempt(Channel channel, User user){
+        return spamAction.equals("off") || user.getNick().equalsIgnoreCase(bot.getNick())
+               || isClone(user.getNick()) || channel.isOp(user) || isAdmin(user);
+    }
+    
+    /**
+     * Checks if a nick belongs to one of the bot's clones.
+     * @param nick the nick
+     * @return true if a clone is using the nick
+     */
+    private boolean isClone(String nick){
+        for (CloneBot cBot : cloneList) {
+            if (cBot.getNick().equalsIgnoreCase(nick)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Carries out the configured anti-spam action against a user.
+     * @param channel the channel
+     * @param user the offending user
+     * @param violation the SpamDetector violation type
+     */
+    private void punish(Channel channel, User user, int violation){
+        String reason;
+        if (violation == SpamDetector.REPEAT) {
+            reason = "repeated message";
+        } else if (violation == SpamDetector.JOIN_FLOOD) {
+            reason = "join flood";
+        } else {
+            reason = "mass highlight";
+        }
+        bot.log("Spam (" + reason + ") from " + user.getNick() + " in " + channel.getName());
+        
+        if (spamAction.equals("warn") || !channel.isOp(bot.getUserBot())) {
+            return;
+        }
+        char mode = spamAction.equals("ban") ? 'b' : 'q';
+        String mask = "*!*@" + user.getHostmask();
+        bot.setMode(channel, "+" + mode + " " + mask);
+        if (timedModes != null) {
+            timedModes.add(channel.getName(), mode, mask, SPAM_PENALTY);
+        }
+    }
+    
+    /**
+     * Broadcasts a message or action from every clone, optionally staggered.
+     * @param user the admin
+     * @param params "[-s ms] recipient message..."
+     * @param msg the entire original message
+     * @param action true to send a CTCP ACTION
+     */
+    private void cloneSend(User user, String[] params, String msg, boolean action){
+        long stagger = 0;
+        int start = 0;
+        int from = 0;
+        if (params.length > 0 && params[0].equals("-s")) {
+            if (params.length < 2) {
+                informUser(user, "Missing parameter(s).");
+                return;
+            }
+            try {
+                stagger = Long.parseLong(params[1]);
+            } catch (NumberFormatException e) {
+                stagger = -1;
+            }
+            if (stagger < 0) {
+                informUser(user, params[1] + " is not a valid delay.");
+                return;
+            }
+            start = 2;
+            from = msg.indexOf(params[1], msg.indexOf(params[0])) + params[1].length();
+        }
+        if (params.length < start + 2) {
+            informUser(user, "Missing parameter(s).");
+        } else if (cloneList.isEmpty()) {
+            informUser(user, "No clones to use.");
+        } else {
+            String recip = params[start];
+            String text = msg.substring(msg.indexOf(recip, from) + recip.length() + 1);
+            if (action) {
+                text = "\u0001ACTION " + text + "\u0001";
+            }
+            CloneBroadcast.send(cloneList, CloneBroadcast.encode("PRIVMSG " + recip + " :" + text), stagger);
+        }
+    }
+    
+    /**
+     * Records the current clone fleet in the manifest. Skipped while a
+     * restore is underway so that a partial fleet is never saved.
+     */
+    private void saveFleet(){
+        if (manifest != null && !restoring) {
+            manifest.setClones(cloneList);
+        }
     }
     
     /**
-     * Saves a list of hosts to the specified file.
-     * @param file the file path
-     * @param hostList ArrayList of hosts
+     * Rejoins the channels and reconnects the clones recorded in the
+     * manifest. Clones reconnect in parallel, throttled to RESTORE_RATE per
+     * second, and the total restore time is logged.
      */
-    private void saveHostList(String file, ArrayList<String> hostList){
-        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
-            for (int ctr = 0; ctr < hostList.size(); ctr++){
-                out.println(hostList.get(ctr));
+    private void restoreFleet(){
+        for (String channel : manifest.getChannels()) {
+            bot.joinChannel(channel);
+        }
+        final List<FleetManifest.CloneEntry> entries = manifest.getClones();
+        if (entries.isEmpty()) {
+            return;
+        }
+        
+        restoring = true;
+        final long start = System.currentTimeMillis();
+        final AtomicInteger count = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool(RESTORE_THREADS);
+        for (int ctr = 0; ctr < entries.size(); ctr++) {
+            final FleetManifest.CloneEntry entry = entries.get(ctr);
+            final long slot = start + ctr * 1000L / RESTORE_RATE;
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long wait = slot - System.currentTimeMillis();
+                        if (wait > 0) {
+                            Thread.sleep(wait);
+                        }
+                        CloneBot newClone = new CloneBot(entry.nick, entry.channels);
+                        serverPool.connect(newClone, entry.server, entry.port);
+                        cloneList.add(newClone);
+                        count.incrementAndGet();
+                    } catch (Exception e) {
+                        bot.log("Error restoring clone " + entry.nick + ": " + e);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        
+        Thread reporter = new Thread("FleetRestore") {
+            @Override
+            public void run() {
+                try {
+                    pool.awaitTermination(1, TimeUnit.HOURS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                restoring = false;
+                saveFleet();
+                bot.log(String.format("Restored %d of %d clones in %.1f seconds.", count.get(),
+                        entries.size(), (System.currentTimeMillis() - start) / 1000.0));
             }
-        } catch (IOException e){
-            bot.log("Error writing to " + file + "!");
-        }      
+        };
+        reporter.setDaemon(true);
+        reporter.start();
     }
     
     /**
-     * Loads a list of hosts from the specified file.
-     * @param file the file path
-     * @return ArrayList of hosts
+     * Returns the message history of a channel, creating it if needed.
+     * @param channel the channel name
+     * @return the channel's history
      */
-    private ArrayList<String> loadHostList(String file){
-        ArrayList<String> hostList = new ArrayList<>();
-        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
-            while (in.ready()) {
-                hostList.add(in.readLine());
+    private ChannelHistory getHistory(String channel){
+        synchronized (historyMap) {
+            ChannelHistory history = historyMap.get(channel.toLowerCase());
+            if (history == null) {
+                history = new ChannelHistory(HISTORY_BUDGET);
+                historyMap.put(channel.toLowerCase(), history);
             }
-        } catch (IOException e){
-            bot.log("Creating " + file + "...");
-            saveHostList(file, hostList);
+            return history;
+        }
+    }
+    
+    /**
+     * Checks if the bot is able to set modes in a channel.
+     * @param channel the channel name
+     * @return true if the bot is an op in the channel
+     */
+    private boolean isBotOp(String channel){
+        if (!bot.channelExists(channel)) {
+            return false;
         }
-        return hostList; // return empty list if unable to read file
+        return bot.getChannel(channel).isOp(bot.getUserBot());
+    }
+    
+    /**
+     * Scans a channel for users matching a pattern and removes them, sending
+     * the bans and kicks several targets to a line.
+     */
+    private void massRemove(User user, String[] params, String msg, boolean ban){
+        boolean dryRun = params.length > 0 && params[0].equals("-n");
+        int start = dryRun ? 1 : 0;
+        if (params.length < start + 2) {
+            informUser(user, "Missing parameter(s).");
+            return;
+        }
+        String channel = params[start];
+        String mask = params[start + 1];
+        String reason = "";
+        if (params.length > start + 2) {
+            reason = msg.substring(msg.indexOf(mask, msg.indexOf(channel) + channel.length()) + mask.length() + 1);
+        }
+        
+        UserMatcher matcher;
+        try {
+            matcher = new UserMatcher(mask);
+        } catch (PatternSyntaxException e) {
+            informUser(user, "Invalid pattern: " + e.getDescription() + ".");
+            return;
+        }
+        if (!bot.channelExists(channel)) {
+            informUser(user, bot.getNick() + " is not in " + channel + ".");
+            return;
+        }
+        Channel tChannel = bot.getChannel(channel);
+        if (!dryRun && !tChannel.isOp(bot.getUserBot())) {
+            informUser(user, bot.getNick() + " is not authorized to do this in " + channel + ".");
+            return;
+        }
+        
+        long scanStart = System.nanoTime();
+        List<User> matches = matcher.scan(tChannel, bot.getUserBot(), adminList);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - scanStart);
+        if (dryRun || matches.isEmpty()) {
+            informUser(user, mask + " matches " + matches.size() + " of " + tChannel.getUsers().size() + " user(s) in " + channel + " (scanned in " + elapsed + "ms).");
+            return;
+        }
+        
+        if (ban) {
+            LinkedHashSet<String> masks = new LinkedHashSet<>();
+            for (User u : matches) {
+                masks.add(matcher.getBanMask(u));
+            }
+            TimedModes.sendModes(bot, channel, "+b", new ArrayList<>(masks));
+        }
+        // Servers such as charybdis take only the first nick of a KICK, so
+        // nicks are combined only when the server says it accepts more
+        int perLine = userState == null ? 1 : Math.min(KICKS_PER_LINE, userState.getKickTargets());
+        if (perLine <= 1) {
+            for (User u : matches) {
+                bot.kick(tChannel, u, reason);
+            }
+        } else {
+            for (int ctr = 0; ctr < matches.size(); ctr += perLine) {
+                StringBuilder nicks = new StringBuilder();
+                for (int idx = ctr; idx < Math.min(ctr + perLine, matches.size()); idx++) {
+                    if (nicks.length() > 0) {
+                        nicks.append(',');
+                    }
+                    nicks.append(matches.get(idx).getNick());
+                }
+                bot.sendRawLine("KICK " + channel + " " + nicks + " :" + reason);
+            }
+        }
+        informUser(user, (ban ? "Banned " : "Kicked ") + matches.size() + " user(s) from " + channel + " (scanned in " + elapsed + "ms).");
+    }
+    
+    /**
+     * Schedules the removal of a mode the bot has just set.
+     * @param user the user to inform of any problems
+     * @param channel the channel
+     * @param mode the list mode
+     * @param mask the mode target
+     * @param duration the duration, such as 30m
+     */
+    private void addTimedMode(User user, String channel, char mode, String mask, String duration){
+        long millis = parseDuration(duration);
+        if (millis <= 0) {
+            informUser(user, "Invalid duration: " + duration + ". Use a number followed by s, m, h, d or w.");
+        } else if (timedModes == null) {
+            informUser(user, "Timed modes are not available on " + bot.getNick() + ".");
+        } else if (isBotOp(channel)) {
+            timedModes.add(channel, mode, mask, millis);
+        }
+    }
+    
+    /**
+     * Parses a duration such as 45s, 30m, 2h, 1d or 1w.
+     * @param str the duration
+     * @return the duration in milliseconds, or -1 if invalid
+     */
+    private long parseDuration(String str){
+        if (str.length() < 2) {
+            return -1;
+        }
+        long unit;
+        switch (Character.toLowerCase(str.charAt(str.length()-1))) {
+            case 's': unit = 1000L; break;
+            case 'm': unit = 60000L; break;
+            case 'h': unit = 3600000L; break;
+            case 'd': unit = 86400000L; break;
+            case 'w': unit = 604800000L; break;
+            default: return -1;
+        }
+        try {
+            return Long.parseLong(str.substring(0, str.length()-1)) * unit;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Returns a user's host, falling back to a WHOX lookup result when
+     * PircBotX has not learned it. If neither knows it, a lookup is sent.
+     * @param u the user
+     * @return the host, or null if it is not known yet
+     */
+    private String getHost(User u){
+        String host = u.getHostmask();
+        if (host != null && !host.isEmpty()) {
+            return host;
+        }
+        if (userState != null) {
+            host = userState.getHost(u.getNick());
+            if (host != null) {
+                return host;
+            }
+            userState.lookup(u.getNick());
+        }
+        return null;
+    }
+    
+    /**
+     * Determines if a user is an admin for the bot.
+     * @param user the user to check
+     * @return true if the user is on the admin list
+     */
+    private boolean isAdmin (User user){
+        return adminList.contains(user.getHostmask());
     }
     
     /**
@@ -863,6 +1609,7 @@ public class Utilities extends ListenerAdapter<PircBotX>{
      * @param msg the message
      */
     private void informUser(User user, String msg) {
+        lastNotice.set(msg);
         bot.sendNotice(user, msg);
     }
     
@@ -876,11 +1623,20 @@ public class Utilities extends ListenerAdapter<PircBotX>{
     }
     
     /**
-     * Returns the original string with IRC bold tags.
-     * @param str the original string
-     * @return the original string sandwiched with bold tags
+     * Returns a duration in milliseconds formatted as days, hours, minutes
+     * and seconds, omitting leading zero units.
+     * @param millis the duration
+     * @return the formatted duration
      */
-    private String formatBold(String str) {
-        return Colors.BOLD + str + Colors.BOLD;
+    private String formatAge(long millis) {
+        long d = millis / 1000;
+        if (d >= 86400) {
+            return String.format("%dd %dh", d / 86400, (d / 3600) % 24);
+        } else if (d >= 3600) {
+            return String.format("%dh %dm", d / 3600, (d / 60) % 60);
+        } else if (d >= 60) {
+            return String.format("%dm %ds", d / 60, d % 60);
+        }
+        return d + "s";
     }
 }